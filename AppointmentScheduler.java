@@ -0,0 +1,214 @@
+import java.io.Serializable;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Appointment book for all doctors.
+ *
+ * Each doctor and each patient has their own calendar: a TreeMap of non-overlapping
+ * appointments keyed by start time, so a conflict check is one floor and one ceiling lookup
+ * (O(log n)) and a free-slot search walks only the appointments that are actually in the way.
+ * Calendars are locked individually, so bookings for different doctors never contend with each
+ * other; a booking locks the doctor's calendar first, then the patient's.
+ */
+public class AppointmentScheduler {
+    private final Map<String, Calendar> calendars = new ConcurrentHashMap<>();
+    private final Map<String, Calendar> patientCalendars = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> doctorsByDepartment = new ConcurrentHashMap<>();
+
+    public void registerDoctor(String doctorId, String department) {
+        calendars.computeIfAbsent(doctorId, id -> new Calendar());
+        doctorsByDepartment.computeIfAbsent(department.toLowerCase(Locale.ROOT), d -> ConcurrentHashMap.newKeySet()).add(doctorId);
+    }
+
+    /**
+     * Books {@code [start, end)} with the doctor; empty if the doctor is unknown, or the doctor or
+     * the patient is already busy then.
+     */
+    public Optional<Appointment> book(String doctorId, String patientId, long start, long end) {
+        if (end <= start) throw new IllegalArgumentException("Appointment must end after it starts");
+        Calendar cal = calendars.get(doctorId);
+        if (cal == null) return Optional.empty();
+        Calendar patientCal = patientCalendars.computeIfAbsent(patientId, id -> new Calendar());
+        Appointment a = new Appointment(doctorId, patientId, start, end);
+        synchronized (cal) {
+            synchronized (patientCal) {
+                if (cal.overlaps(start, end) || patientCal.overlaps(start, end)) return Optional.empty();
+                cal.byStart.put(start, a);
+                patientCal.byStart.put(start, a);
+            }
+        }
+        return Optional.of(a);
+    }
+
+    /** Cancels the doctor's appointment starting at {@code start}; returns it, or empty if there is none. */
+    public Optional<Appointment> cancel(String doctorId, long start) {
+        Calendar cal = calendars.get(doctorId);
+        if (cal == null) return Optional.empty();
+        synchronized (cal) {
+            Appointment a = cal.byStart.get(start);
+            if (a == null) return Optional.empty();
+            Calendar patientCal = patientCalendars.get(a.getPatientId());
+            synchronized (patientCal) {
+                cal.byStart.remove(start);
+                patientCal.byStart.remove(start, a);
+            }
+            return Optional.of(a);
+        }
+    }
+
+    /**
+     * Earliest gap of {@code duration} ms in which both this doctor and the patient are free, starting
+     * at or after {@code notBefore} and ending by {@code until}.
+     */
+    public Optional<Slot> findFreeSlot(String doctorId, String patientId, long notBefore, long duration, long until) {
+        Calendar cal = calendars.get(doctorId);
+        if (cal == null) return Optional.empty();
+        Calendar patientCal = patientCalendars.computeIfAbsent(patientId, id -> new Calendar());
+        long start = notBefore;
+        // Each side pushes the candidate past its own conflicts until neither has one
+        while (start + duration <= until) {
+            long next;
+            synchronized (cal) {
+                synchronized (patientCal) {
+                    next = patientCal.earliestGap(cal.earliestGap(start, duration), duration);
+                }
+            }
+            if (next == start) break;
+            start = next;
+        }
+        return start + duration <= until ? Optional.of(new Slot(doctorId, start, start + duration)) : Optional.empty();
+    }
+
+    /** Earliest slot across every doctor in the department that the patient is also free for. */
+    public Optional<Slot> findFreeSlotInDepartment(String department, String patientId, long notBefore, long duration, long until) {
+        Slot best = null;
+        for (String doctorId : doctorsIn(department)) {
+            Optional<Slot> slot = findFreeSlot(doctorId, patientId, notBefore, duration, best == null ? until : best.getStart() + duration);
+            if (slot.isPresent() && (best == null || slot.get().getStart() < best.getStart())) best = slot.get();
+        }
+        return Optional.ofNullable(best);
+    }
+
+    /** Books the earliest free slot in the department, retrying if another booking takes it first. */
+    public Optional<Appointment> bookFirstAvailable(String department, String patientId, long notBefore, long duration, long until) {
+        while (true) {
+            Optional<Slot> slot = findFreeSlotInDepartment(department, patientId, notBefore, duration, until);
+            if (!slot.isPresent()) return Optional.empty();
+            Slot s = slot.get();
+            Optional<Appointment> booked = book(s.getDoctorId(), patientId, s.getStart(), s.getEnd());
+            if (booked.isPresent()) return booked;
+        }
+    }
+
+    /** The doctor's appointments overlapping {@code [from, to)}, in time order. */
+    public List<Appointment> forDoctor(String doctorId, long from, long to) {
+        return between(calendars.get(doctorId), from, to);
+    }
+
+    /** The patient's appointments overlapping {@code [from, to)}, in time order. */
+    public List<Appointment> forPatient(String patientId, long from, long to) {
+        return between(patientCalendars.get(patientId), from, to);
+    }
+
+    /** Every booked appointment, for persisting. */
+    public List<Appointment> all() {
+        List<Appointment> result = new ArrayList<>();
+        for (Calendar cal : calendars.values()) {
+            synchronized (cal) {
+                result.addAll(cal.byStart.values());
+            }
+        }
+        return result;
+    }
+
+    private Set<String> doctorsIn(String department) {
+        Set<String> ids = doctorsByDepartment.get(department.toLowerCase(Locale.ROOT));
+        return ids == null ? Collections.emptySet() : ids;
+    }
+
+    private static List<Appointment> between(Calendar cal, long from, long to) {
+        if (cal == null) return Collections.emptyList();
+        synchronized (cal) {
+            List<Appointment> result = new ArrayList<>();
+            Map.Entry<Long, Appointment> first = cal.byStart.lowerEntry(from);
+            if (first != null && first.getValue().getEnd() > from) result.add(first.getValue());
+            result.addAll(cal.byStart.subMap(from, true, to, false).values());
+            return result;
+        }
+    }
+
+    // One doctor's or one patient's appointments; guarded by its own monitor
+    private static final class Calendar {
+        private final NavigableMap<Long, Appointment> byStart = new TreeMap<>();
+
+        boolean overlaps(long start, long end) {
+            Map.Entry<Long, Appointment> before = byStart.floorEntry(start);
+            if (before != null && before.getValue().getEnd() > start) return true;
+            Map.Entry<Long, Appointment> after = byStart.higherEntry(start);
+            return after != null && after.getKey() < end;
+        }
+
+        long earliestGap(long notBefore, long duration) {
+            long candidate = notBefore;
+            Map.Entry<Long, Appointment> before = byStart.floorEntry(notBefore);
+            if (before != null) candidate = Math.max(candidate, before.getValue().getEnd());
+            for (Appointment a : byStart.tailMap(candidate, true).values()) {
+                if (a.getStart() >= candidate + duration) break;
+                candidate = Math.max(candidate, a.getEnd());
+            }
+            return candidate;
+        }
+    }
+
+    public static final class Appointment implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String doctorId;
+        private final String patientId;
+        private final long start;
+        private final long end;
+
+        public Appointment(String doctorId, String patientId, long start, long end) {
+            this.doctorId = doctorId;
+            this.patientId = patientId;
+            this.start = start;
+            this.end = end;
+        }
+
+        public String getDoctorId() { return doctorId; }
+        public String getPatientId() { return patientId; }
+        public long getStart() { return start; }
+        public long getEnd() { return end; }
+
+        @Override
+        public String toString() {
+            return Instant.ofEpochMilli(start) + " - " + Instant.ofEpochMilli(end) + "  doctor " + doctorId + "  patient " + patientId;
+        }
+    }
+
+    /** A free interval with one doctor. */
+    public static final class Slot {
+        private final String doctorId;
+        private final long start;
+        private final long end;
+
+        Slot(String doctorId, long start, long end) {
+            this.doctorId = doctorId;
+            this.start = start;
+            this.end = end;
+        }
+
+        public String getDoctorId() { return doctorId; }
+        public long getStart() { return start; }
+        public long getEnd() { return end; }
+    }
+}
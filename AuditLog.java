@@ -0,0 +1,313 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Asynchronous audit trail of who added, assigned or billed what.
+ *
+ * Producers claim a slot in a preallocated ring with one atomic increment, fill it in and
+ * publish it with an ordered store; nothing is allocated and no lock is taken on the
+ * mutation path. A single background writer drains published slots in batches, appends them
+ * as lines to {@code audit-N.log} (each ending in a CRC32 of the line) and forces them to disk
+ * once per batch, rotating to a new file past {@link #MAX_FILE_BYTES}. Slots are only released
+ * once their batch is on disk; a failed write is retried with the same formatted batch. When
+ * the ring is full a producer waits for the writer instead of dropping the record.
+ *
+ * A line is {@code seq|timestamp|user|action|subject|detail|crc}. Backslashes, {@code |} and
+ * line breaks inside the fields are escaped ({@code \\}, {@code \|}, {@code \n}, {@code \r}),
+ * so a name can't forge a field or a record. Sequence numbers carry on from the last intact
+ * record already in the directory, so they stay unique across runs.
+ *
+ * {@code java AuditLog verify <dir>} checks every line's checksum.
+ */
+public class AuditLog implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(AuditLog.class.getName());
+    public static final long MAX_FILE_BYTES = 16L * 1024 * 1024;
+    private static final int MAX_BATCH = 512;
+    private static final long CLOSE_TIMEOUT_MS = 5000;
+    private static AuditLog shared;
+
+    private final File dir;
+    private final int mask;
+    private final Slot[] slots;
+    // Sequence published in each slot; a slot is readable once it holds the sequence being read
+    private final AtomicLongArray published;
+    private final AtomicLong claimed = new AtomicLong(-1);
+    private final AtomicLong consumed = new AtomicLong(-1);
+    // Sequence number of ring slot 0: one past the last record written by earlier runs
+    private final long firstSeq;
+    private final Thread writer;
+    private volatile boolean running = true;
+    // Set when close() gives up waiting; the writer then stops where it is
+    private volatile boolean abandoned;
+
+    private FileOutputStream file;
+    private OutputStream out;
+    private long fileBytes;
+    private int fileIndex;
+
+    /** @param capacity ring size, rounded up to a power of two */
+    public AuditLog(File dir, int capacity) throws IOException {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.dir = dir;
+        this.mask = size - 1;
+        this.slots = new Slot[size];
+        this.published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+            published.set(i, -1);
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create audit directory " + dir);
+        while (new File(dir, "audit-" + (fileIndex + 1) + ".log").exists()) fileIndex++;
+        firstSeq = lastSequence(dir, fileIndex) + 1;
+        openFile();
+        writer = new Thread(this::drain, "audit-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /** Process-wide audit log in {@code hms.audit.dir} (default {@code audit}), flushed on exit. */
+    public static synchronized AuditLog shared() {
+        if (shared == null) {
+            try {
+                shared = new AuditLog(new File(System.getProperty("hms.audit.dir", "audit")), 8192);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot open audit log", e);
+            }
+            AuditLog log = shared;
+            Runtime.getRuntime().addShutdownHook(new Thread(log::close, "audit-shutdown"));
+        }
+        return shared;
+    }
+
+    /** Records one audit event. Allocation-free; blocks only while the ring is full. */
+    public void publish(String user, String action, String subject, String detail) {
+        long seq = claimed.incrementAndGet();
+        // Backpressure: never overwrite a slot the writer hasn't consumed yet
+        while (seq - consumed.get() > slots.length) {
+            LockSupport.parkNanos(1000);
+        }
+        Slot s = slots[(int) seq & mask];
+        s.timestamp = System.currentTimeMillis();
+        s.user = user;
+        s.action = action;
+        s.subject = subject;
+        s.detail = detail;
+        published.lazySet((int) seq & mask, seq);
+    }
+
+    private void drain() {
+        StringBuilder line = new StringBuilder(256);
+        CRC32 crc = new CRC32();
+        ByteArrayOutputStream batch = new ByteArrayOutputStream(64 * 1024);
+        long next = 0;
+        int idle = 0;
+        while ((running || next <= claimed.get()) && !abandoned) {
+            long first = next;
+            while (next - first < MAX_BATCH && published.get((int) next & mask) == next) {
+                Slot s = slots[(int) next & mask];
+                line.setLength(0);
+                line.append(firstSeq + next).append('|').append(s.timestamp).append('|');
+                escape(line, s.user).append('|');
+                escape(line, s.action).append('|');
+                escape(line, s.subject).append('|');
+                escape(line, s.detail);
+                format(line, crc, batch);
+                next++;
+            }
+            if (next == first) {
+                // Spin briefly, then back off so an idle writer costs next to nothing
+                if (++idle < 100) Thread.onSpinWait();
+                else LockSupport.parkNanos(Math.min(1_000_000L, 1000L * idle));
+                continue;
+            }
+            idle = 0;
+            while (!persist(batch)) {
+                if (abandoned) return;
+                LockSupport.parkNanos(100_000_000L);
+            }
+            batch.reset();
+            // Only now may producers reuse these slots
+            for (long seq = first; seq < next; seq++) {
+                Slot s = slots[(int) seq & mask];
+                s.user = s.action = s.subject = s.detail = null;
+            }
+            consumed.lazySet(next - 1);
+        }
+        try {
+            if (out != null) out.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Failed to close audit log", e);
+        }
+    }
+
+    private static StringBuilder escape(StringBuilder line, String field) {
+        if (field == null) return line.append("null");
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            switch (c) {
+                case '\\': line.append("\\\\"); break;
+                case '|': line.append("\\|"); break;
+                case '\n': line.append("\\n"); break;
+                case '\r': line.append("\\r"); break;
+                default: line.append(c);
+            }
+        }
+        return line;
+    }
+
+    // Sequence number of the last intact record in the newest file that has one, or -1 for none
+    private static long lastSequence(File dir, int newestIndex) throws IOException {
+        CRC32 crc = new CRC32();
+        for (int i = newestIndex; i >= 1; i--) {
+            long last = -1;
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(new File(dir, "audit-" + i + ".log")), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (!intact(line, crc)) continue;
+                    try {
+                        last = Long.parseLong(line.substring(0, line.indexOf('|')));
+                    } catch (NumberFormatException e) {
+                        // not a record this class wrote; keep the last one that was
+                    }
+                }
+            }
+            if (last >= 0) return last;
+        }
+        return -1;
+    }
+
+    private static boolean intact(String line, CRC32 crc) {
+        int cut = line.lastIndexOf('|');
+        if (cut <= 0 || line.indexOf('|') == cut) return false;
+        crc.reset();
+        crc.update(line.substring(0, cut).getBytes(StandardCharsets.UTF_8));
+        return String.format("%08x", crc.getValue()).equals(line.substring(cut + 1));
+    }
+
+    private static void format(CharSequence line, CRC32 crc, ByteArrayOutputStream batch) {
+        byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+        crc.reset();
+        crc.update(bytes);
+        batch.writeBytes(bytes);
+        batch.writeBytes(String.format("|%08x%n", crc.getValue()).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    // Writes and syncs one batch; on failure drops the stream (and whatever it buffered) so the retry starts clean
+    private boolean persist(ByteArrayOutputStream batch) {
+        try {
+            if (out == null) openFile();
+            batch.writeTo(out);
+            out.flush();
+            file.getFD().sync();
+            fileBytes += batch.size();
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Audit write failed, retrying", e);
+            try {
+                file.close();
+            } catch (IOException ignored) {
+                // reopened on the next attempt
+            }
+            out = null;
+            return false;
+        }
+        if (fileBytes >= MAX_FILE_BYTES) {
+            try {
+                rotate();
+            } catch (IOException e) {
+                // The batch is safe; the next one retries opening a file
+                LOGGER.log(Level.SEVERE, "Audit log rotation failed", e);
+                out = null;
+            }
+        }
+        return true;
+    }
+
+    private void openFile() throws IOException {
+        File f = new File(dir, "audit-" + (fileIndex == 0 ? 1 : fileIndex) + ".log");
+        if (fileIndex == 0) fileIndex = 1;
+        boolean torn = endsMidLine(f);
+        file = new FileOutputStream(f, true);
+        out = new BufferedOutputStream(file, 64 * 1024);
+        // A write that failed part way may have left half a line; end it so the next record starts clean
+        if (torn) out.write('\n');
+        fileBytes = f.length();
+    }
+
+    private static boolean endsMidLine(File f) throws IOException {
+        if (f.length() == 0) return false;
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+            raf.seek(raf.length() - 1);
+            return raf.read() != '\n';
+        }
+    }
+
+    private void rotate() throws IOException {
+        out.close();
+        fileIndex++;
+        openFile();
+    }
+
+    /**
+     * Drains everything already published, then closes the file. Waits at most
+     * {@link #CLOSE_TIMEOUT_MS}: a producer that claimed a slot and never filled it, or a disk that
+     * keeps failing, would otherwise hang shutdown. Records still pending then are reported as lost.
+     */
+    @Override
+    public void close() {
+        running = false;
+        try {
+            writer.join(CLOSE_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writer.isAlive()) {
+            abandoned = true;
+            LOGGER.severe("Audit log closed with " + (claimed.get() - consumed.get()) + " records not written");
+        }
+    }
+
+    private static final class Slot {
+        long timestamp;
+        String user;
+        String action;
+        String subject;
+        String detail;
+    }
+
+    // Checks every line of every audit file in a directory and reports corrupt ones
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2 || !"verify".equals(args[0])) {
+            System.out.println("Usage: java AuditLog verify <dir>");
+            return;
+        }
+        File[] files = new File(args[1]).listFiles((d, name) -> name.startsWith("audit-") && name.endsWith(".log"));
+        if (files == null) {
+            System.out.println("No such directory: " + args[1]);
+            return;
+        }
+        long good = 0, bad = 0;
+        CRC32 crc = new CRC32();
+        for (File f : files) {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8))) {
+                String line;
+                int lineNo = 0;
+                while ((line = in.readLine()) != null) {
+                    lineNo++;
+                    if (intact(line, crc)) {
+                        good++;
+                    } else {
+                        bad++;
+                        System.out.println(f.getName() + ":" + lineNo + " checksum mismatch");
+                    }
+                }
+            }
+        }
+        System.out.println(good + " records verified, " + bad + " corrupt");
+    }
+}
@@ -0,0 +1,358 @@
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Streaming transforms for {@link BlockFile} payloads, such as compression and encryption.
+ *
+ * Each block records which codecs encoded it as bits in a flags byte, so a file can mix
+ * plain, compressed and encrypted blocks and every block still decodes on its own. Codecs are
+ * applied in ascending bit order on the way out (records are compressed before they are
+ * encrypted) and undone in reverse on the way in. The CRC is taken over the encoded bytes, so
+ * {@link RecoveryTool} can check and copy blocks without the key.
+ *
+ * {@link #shared()} is configured from system properties: {@code hms.storage.compression}
+ * ({@code deflate}, the default, or {@code none}) and {@code hms.storage.keyFile}, a file
+ * holding a Base64 AES key ({@code java BlockCodecs genkey <file>} makes one). With a key file,
+ * new blocks are encrypted with AES-GCM and every block read must be encrypted too, so nobody
+ * can slip in plain records by clearing the flag and fixing the CRC. To encrypt an existing
+ * plain file, load and save it once with {@code -Dhms.storage.allowPlaintext=true}.
+ *
+ * Only the data file is covered. The discharged-patient archive
+ * ({@link HospitalService#DEFAULT_ARCHIVE_FILE}) and the audit log are still written in the clear.
+ */
+public final class BlockCodecs {
+    /** A reversible payload transform. Implementations must be safe to use from several threads. */
+    public interface Codec {
+        /** The single bit that marks blocks encoded with this codec. */
+        int flag();
+
+        /**
+         * @param context the block header fields the payload is bound to, which authenticating
+         *                codecs must cover; null only for blocks from before file version 4
+         */
+        OutputStream encoding(OutputStream out, byte[] context) throws IOException;
+
+        InputStream decoding(InputStream in, byte[] context) throws IOException;
+    }
+
+    /**
+     * The storage key is missing, unreadable or not the one the data was saved with. The data
+     * itself is most likely fine, so callers must leave the file alone rather than treat it as
+     * damaged.
+     */
+    public static final class KeyException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        KeyException(String message) {
+            super(message);
+        }
+
+        KeyException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    /** True if {@code t}, or anything that caused it, is a {@link KeyException}. */
+    public static boolean isKeyError(Throwable t) {
+        for (; t != null; t = t.getCause()) {
+            if (t instanceof KeyException) return true;
+        }
+        return false;
+    }
+
+    private static BlockCodecs shared;
+
+    // Every codec this instance can decode, indexed by bit; writers apply those in writeFlags
+    private final Codec[] byBit = new Codec[8];
+    private final int writeFlags;
+    private final int requiredFlags;
+
+    /** Decodes with any of {@code known} and encodes new blocks with those in {@code used}. */
+    public BlockCodecs(List<Codec> known, List<Codec> used) {
+        this(known, used, 0);
+    }
+
+    /** As above, and refuses to read blocks that lack any codec in {@code requiredFlags}. */
+    public BlockCodecs(List<Codec> known, List<Codec> used, int requiredFlags) {
+        for (Codec c : known) byBit[Integer.numberOfTrailingZeros(c.flag())] = c;
+        int flags = 0;
+        for (Codec c : used) {
+            if (byBit[Integer.numberOfTrailingZeros(c.flag())] != c) throw new IllegalArgumentException("Codec " + c + " is not among the known codecs");
+            flags |= c.flag();
+        }
+        this.writeFlags = flags;
+        this.requiredFlags = requiredFlags;
+    }
+
+    /** Writes plain blocks, as version 2 did; can still read compressed ones. */
+    public static BlockCodecs none() {
+        Codec deflate = new DeflateCodec(Deflater.DEFAULT_COMPRESSION);
+        return new BlockCodecs(List.of(deflate), List.of());
+    }
+
+    /**
+     * Codecs chosen by the {@code hms.storage.*} properties, shared by every save and load.
+     *
+     * @throws KeyException if the configured key file can't be read
+     */
+    public static synchronized BlockCodecs shared() throws KeyException {
+        if (shared == null) {
+            String compression = System.getProperty("hms.storage.compression", "deflate").toLowerCase(Locale.ROOT);
+            String keyFile = System.getProperty("hms.storage.keyFile");
+            int required = 0;
+            List<Codec> known = new ArrayList<>();
+            List<Codec> used = new ArrayList<>();
+            Codec deflate = new DeflateCodec(Deflater.BEST_SPEED);
+            known.add(deflate);
+            if (compression.equals("deflate")) {
+                used.add(deflate);
+            } else if (!compression.equals("none")) {
+                throw new IllegalArgumentException("Unknown hms.storage.compression '" + compression + "'; use deflate or none");
+            }
+            if (keyFile != null) {
+                try {
+                    Codec aes = new AesGcmCodec(readKey(new File(keyFile)));
+                    known.add(aes);
+                    used.add(aes);
+                    if (!Boolean.getBoolean("hms.storage.allowPlaintext")) required = AesGcmCodec.FLAG;
+                } catch (IOException e) {
+                    throw new KeyException("Cannot read storage key from " + keyFile + " (" + e + ")", e);
+                }
+            }
+            shared = new BlockCodecs(known, used, required);
+        }
+        return shared;
+    }
+
+    /** Flags to record on blocks this instance writes. */
+    public int writeFlags() {
+        return writeFlags;
+    }
+
+    /** Flags every block read must carry; blocks missing one are refused. */
+    public int requiredFlags() {
+        return requiredFlags;
+    }
+
+    /** True if this instance holds every codec in {@code flags}. */
+    public boolean canDecode(int flags) {
+        for (int bit = 0; bit < 8; bit++) {
+            if ((flags & (1 << bit)) != 0 && byBit[bit] == null) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Wraps {@code out} so that what is written to the result is encoded with the codecs in
+     * {@code flags}, bound to {@code context} (see {@link Codec#encoding}).
+     */
+    public OutputStream encoding(int flags, byte[] context, OutputStream out) throws IOException {
+        if (flags == 0) return out;
+        // The last codec to apply is the one nearest the underlying stream
+        for (int bit = 7; bit >= 0; bit--) {
+            if ((flags & (1 << bit)) != 0) out = codec(bit).encoding(out, context);
+        }
+        // Serialization writes a few bytes at a time; codecs do far better with whole buffers
+        return new BufferedOutputStream(out, 8192);
+    }
+
+    /** Wraps {@code in} so that reading the result undoes the codecs in {@code flags}. */
+    public InputStream decoding(int flags, byte[] context, InputStream in) throws IOException {
+        if (flags == 0) return in;
+        for (int bit = 7; bit >= 0; bit--) {
+            if ((flags & (1 << bit)) != 0) in = codec(bit).decoding(in, context);
+        }
+        return new BufferedInputStream(in, 8192);
+    }
+
+    private Codec codec(int bit) throws IOException {
+        Codec c = byBit[bit];
+        if (c != null) return c;
+        if (1 << bit == AesGcmCodec.FLAG) throw new KeyException("Block is encrypted; set hms.storage.keyFile to the key it was saved with");
+        throw new IOException("Block uses unknown codec " + (1 << bit));
+    }
+
+    static SecretKey readKey(File f) throws IOException {
+        String text = new String(Files.readAllBytes(f.toPath()), StandardCharsets.US_ASCII).trim();
+        byte[] key;
+        try {
+            key = Base64.getDecoder().decode(text);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Key file is not Base64", e);
+        }
+        if (key.length != 16 && key.length != 24 && key.length != 32) throw new IOException("AES keys are 16, 24 or 32 bytes, not " + key.length);
+        return new SecretKeySpec(key, "AES");
+    }
+
+    // -------------------- Codecs --------------------
+    /**
+     * Deflate, by default at its fastest level: hospital records are repetitive enough that
+     * speed costs little ratio, and it keeps saves close to the uncompressed time.
+     */
+    public static final class DeflateCodec implements Codec {
+        public static final int FLAG = 1;
+        private final int level;
+
+        public DeflateCodec(int level) {
+            this.level = level;
+        }
+
+        @Override
+        public int flag() {
+            return FLAG;
+        }
+
+        @Override
+        public OutputStream encoding(OutputStream out, byte[] context) {
+            Deflater deflater = new Deflater(level);
+            // A supplied Deflater isn't released by close(), so release it here rather than at GC
+            return new DeflaterOutputStream(out, deflater, 8192) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        deflater.end();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public InputStream decoding(InputStream in, byte[] context) {
+            return new InflaterInputStream(in, new Inflater(), 8192) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        inf.end();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public String toString() {
+            return "deflate(" + level + ")";
+        }
+    }
+
+    /**
+     * AES-GCM with a fresh random 96-bit IV per block, stored ahead of the ciphertext. The
+     * 128-bit tag authenticates the block and, as associated data, its kind, codecs, record
+     * count and position in the file, so a wrong key, tampered bytes, or a block edited,
+     * moved or dropped fail to decode.
+     * Blocks have already passed their CRC by then, so a tag mismatch is reported as a
+     * {@link KeyException}: a wrong key is far likelier than bytes altered and re-checksummed.
+     */
+    public static final class AesGcmCodec implements Codec {
+        public static final int FLAG = 2;
+        private static final int IV_BYTES = 12;
+        private static final int TAG_BITS = 128;
+
+        private final SecretKey key;
+        private final SecureRandom random = new SecureRandom();
+
+        public AesGcmCodec(SecretKey key) {
+            this.key = key;
+        }
+
+        @Override
+        public int flag() {
+            return FLAG;
+        }
+
+        @Override
+        public OutputStream encoding(OutputStream out, byte[] context) throws IOException {
+            byte[] iv = new byte[IV_BYTES];
+            random.nextBytes(iv);
+            out.write(iv);
+            return new CipherOutputStream(out, cipher(Cipher.ENCRYPT_MODE, iv, context));
+        }
+
+        @Override
+        public InputStream decoding(InputStream in, byte[] context) throws IOException {
+            byte[] iv = new byte[IV_BYTES];
+            new DataInputStream(in).readFully(iv);
+            return new FilterInputStream(new CipherInputStream(in, cipher(Cipher.DECRYPT_MODE, iv, context))) {
+                @Override
+                public int read() throws IOException {
+                    try {
+                        return super.read();
+                    } catch (IOException e) {
+                        throw classify(e);
+                    }
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    try {
+                        return super.read(b, off, len);
+                    } catch (IOException e) {
+                        throw classify(e);
+                    }
+                }
+            };
+        }
+
+        private static IOException classify(IOException e) {
+            if (e.getCause() instanceof AEADBadTagException) {
+                return new KeyException("Block does not decrypt with the configured key; it was saved with a different one (or altered)", e);
+            }
+            return e;
+        }
+
+        private Cipher cipher(int mode, byte[] iv, byte[] context) throws IOException {
+            try {
+                Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+                cipher.init(mode, key, new GCMParameterSpec(TAG_BITS, iv));
+                if (context != null) cipher.updateAAD(context);
+                return cipher;
+            } catch (GeneralSecurityException e) {
+                throw new IOException("AES-GCM unavailable", e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "aes-gcm(" + key.getEncoded().length * 8 + ")";
+        }
+    }
+
+    /** {@code java BlockCodecs genkey <file>}: writes a new random 256-bit key for hms.storage.keyFile. */
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2 || !args[0].equals("genkey")) {
+            System.out.println("Usage: java BlockCodecs genkey <key-file>");
+            return;
+        }
+        File f = new File(args[1]);
+        if (f.exists()) {
+            System.out.println(f + " already exists; not overwriting a key that may still be needed");
+            System.exit(1);
+        }
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(256);
+        Files.write(f.toPath(), Base64.getEncoder().encode(generator.generateKey().getEncoded()));
+        System.out.println("Wrote a 256-bit key to " + f + ". Keep it safe: files saved with it cannot be read without it.");
+    }
+}
@@ -0,0 +1,289 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Chunked persistence format: a short header followed by independently serialized blocks
+ * of records. Because every block stands on its own, a loader can hand blocks to worker
+ * threads as soon as they are read and show records before the whole file is decoded.
+ *
+ * Layout: MAGIC, VERSION, then per block {SYNC, kind, codecs, recordCount, length, crc, payload},
+ * ending with SYNC and a kind of END. The payload is a Java-serialized ArrayList of the records,
+ * encoded by the {@link BlockCodecs} flagged in {@code codecs} (compression, encryption); the
+ * CRC32 covers the header fields and the encoded payload, and the SYNC marker lets
+ * {@link RecoveryTool} find the next block after a damaged one. From version 4 on, encrypted
+ * payloads are also bound to their header fields and their position in the file (see
+ * {@link #context}). Version 1 files (no marker, no checksum), version 2 files (no codecs byte,
+ * always plain) and version 3 files (encryption not bound to the header) are still readable.
+ */
+public final class BlockFile {
+    public static final int MAGIC = 0x484D5342; // "HMSB"
+    public static final int VERSION = 4;
+    public static final int SYNC = 0x424C4B21; // "BLK!"
+    public static final byte END = 0;
+    // Larger lengths can only come from a damaged header
+    public static final int MAX_BLOCK_BYTES = 1 << 30;
+
+    private BlockFile() {}
+
+    /** True if {@code f} starts with the block file header (as opposed to the legacy single-object format). */
+    public static boolean isBlockFile(File f) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(f))) {
+            return f.length() >= 4 && in.readInt() == MAGIC;
+        }
+    }
+
+    /** Body of an atomic save; see {@link #writeAtomically}. */
+    public interface Content {
+        void writeTo(Writer out) throws IOException;
+    }
+
+    /**
+     * Writes {@code target} so that it is always either the old or the complete new file:
+     * the content goes to a temporary file in the same directory, is forced to disk and then
+     * renamed over the target.
+     */
+    public static void writeAtomically(File target, Content content) throws IOException {
+        writeAtomically(target, BlockCodecs.shared(), content);
+    }
+
+    /** As {@link #writeAtomically(File, Content)}, encoding new blocks with {@code codecs}. */
+    public static void writeAtomically(File target, BlockCodecs codecs, Content content) throws IOException {
+        File dir = target.getAbsoluteFile().getParentFile();
+        File tmp = File.createTempFile(target.getName() + ".", ".tmp", dir);
+        try {
+            try (FileOutputStream fos = new FileOutputStream(tmp)) {
+                Writer out = new Writer(fos, codecs);
+                content.writeTo(out);
+                out.finish();
+                fos.getFD().sync();
+            }
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+        // Persist the rename itself; not every platform lets a directory be opened for this
+        try (FileChannel d = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            d.force(true);
+        } catch (IOException ignored) {
+            // best effort
+        }
+    }
+
+    /**
+     * What an encrypted block is bound to: its kind, codecs, record count and index among the
+     * file's blocks, so none of them can be changed, nor blocks reordered or dropped, without
+     * failing authentication.
+     */
+    static byte[] context(byte kind, int codecs, int recordCount, int index) {
+        return new byte[] {kind, (byte) codecs,
+                (byte) (recordCount >>> 24), (byte) (recordCount >>> 16), (byte) (recordCount >>> 8), (byte) recordCount,
+                (byte) (index >>> 24), (byte) (index >>> 16), (byte) (index >>> 8), (byte) index};
+    }
+
+    public static final class Writer implements Closeable {
+        private final DataOutputStream out;
+        private final BlockCodecs codecs;
+        private final CRC32 crc = new CRC32();
+        private int blocks;
+        private boolean finished;
+
+        public Writer(OutputStream out) throws IOException {
+            this(out, BlockCodecs.shared());
+        }
+
+        public Writer(OutputStream out, BlockCodecs codecs) throws IOException {
+            this.codecs = codecs;
+            this.out = new DataOutputStream(new BufferedOutputStream(out));
+            this.out.writeInt(MAGIC);
+            this.out.writeInt(VERSION);
+        }
+
+        /** Writes {@code records} as consecutive blocks of at most {@code blockSize} records each. */
+        public void writeAll(byte kind, List<? extends Serializable> records, int blockSize) throws IOException {
+            for (int from = 0; from < records.size(); from += blockSize) {
+                writeBlock(kind, records.subList(from, Math.min(records.size(), from + blockSize)));
+            }
+        }
+
+        public void writeBlock(byte kind, List<? extends Serializable> records) throws IOException {
+            int flags = codecs.writeFlags();
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            // Records stream through the codecs as they are serialized
+            try (ObjectOutputStream oos = new ObjectOutputStream(codecs.encoding(flags, context(kind, flags, records.size(), blocks), buf))) {
+                oos.writeObject(new ArrayList<>(records));
+            }
+            writeBlock(new Block(kind, flags, records.size(), buf.toByteArray(), codecs, blocks));
+        }
+
+        /**
+         * Copies an already serialized block as it is, e.g. one salvaged from another file. An
+         * encrypted block is bound to its position, so if it lands elsewhere here it is decoded
+         * and sealed again, as is a plain block when this writer encrypts.
+         */
+        @SuppressWarnings("unchecked")
+        public void writeBlock(Block block) throws IOException {
+            boolean moved = (block.codecs & BlockCodecs.AesGcmCodec.FLAG) != 0 && block.index != blocks;
+            boolean unsealed = (codecs.writeFlags() & ~block.codecs & BlockCodecs.AesGcmCodec.FLAG) != 0;
+            if (moved || unsealed) {
+                try {
+                    writeBlock(block.kind, (List<? extends Serializable>) block.decode());
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("Cannot re-encode block of unknown records", e);
+                }
+                return;
+            }
+            blocks++;
+            out.writeInt(SYNC);
+            out.writeByte(block.kind);
+            out.writeByte(block.codecs);
+            out.writeInt(block.recordCount);
+            out.writeInt(block.payload.length);
+            out.writeInt(checksum(crc, VERSION, block.kind, block.codecs, block.recordCount, block.payload));
+            out.write(block.payload);
+        }
+
+        /** Writes the end marker and flushes, leaving the underlying stream open. */
+        public void finish() throws IOException {
+            if (finished) return;
+            finished = true;
+            out.writeInt(SYNC);
+            out.writeByte(END);
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish();
+            out.close();
+        }
+    }
+
+    // Version 2 blocks have no codecs byte, so it is only covered from version 3 on
+    static int checksum(CRC32 crc, int version, byte kind, int codecs, int recordCount, byte[] payload) {
+        crc.reset();
+        crc.update(kind);
+        if (version > 2) crc.update(codecs);
+        crc.update(recordCount >>> 24);
+        crc.update(recordCount >>> 16);
+        crc.update(recordCount >>> 8);
+        crc.update(recordCount);
+        crc.update(payload.length >>> 24);
+        crc.update(payload.length >>> 16);
+        crc.update(payload.length >>> 8);
+        crc.update(payload.length);
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    public static final class Reader implements Closeable {
+        private final DataInputStream in;
+        private final BlockCodecs codecs;
+        private final int version;
+        private final CRC32 crc = new CRC32();
+        private long bytesRead;
+        private int index;
+
+        public Reader(InputStream in) throws IOException {
+            this(in, BlockCodecs.shared());
+        }
+
+        public Reader(InputStream in, BlockCodecs codecs) throws IOException {
+            this.codecs = codecs;
+            this.in = new DataInputStream(new BufferedInputStream(in));
+            if (this.in.readInt() != MAGIC) throw new IOException("Not a block file");
+            version = this.in.readInt();
+            if (version < 1 || version > VERSION) throw new IOException("Unsupported block file version " + version);
+            bytesRead = 8;
+        }
+
+        /**
+         * Reads the next raw block without decoding it, or returns null at the end marker.
+         * Fails with an IOException naming the offset if the block is truncated or damaged.
+         */
+        public Block next() throws IOException {
+            long offset = bytesRead;
+            try {
+                if (version > 1 && in.readInt() != SYNC) throw new IOException("Missing block marker at offset " + offset);
+                byte kind = in.readByte();
+                if (kind == END) return null;
+                int flags = version > 2 ? in.readUnsignedByte() : 0;
+                int count = in.readInt();
+                int length = in.readInt();
+                int expected = version > 1 ? in.readInt() : 0;
+                if (length < 0 || length > MAX_BLOCK_BYTES) throw new IOException("Bad block length " + length + " at offset " + offset);
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                bytesRead += headerBytes(version) + length;
+                if (version > 1 && checksum(crc, version, kind, flags, count, payload) != expected) {
+                    throw new IOException("Checksum mismatch in block at offset " + offset);
+                }
+                if ((flags & codecs.requiredFlags()) != codecs.requiredFlags()) {
+                    throw new BlockCodecs.KeyException("Block at offset " + offset + " is not encrypted although a storage key is configured;"
+                            + " to encrypt a plain file, load and save it once with -Dhms.storage.allowPlaintext=true");
+                }
+                return new Block(kind, flags, count, payload, codecs, version > 3 ? index++ : -1);
+            } catch (EOFException e) {
+                throw new IOException("File truncated in block at offset " + offset, e);
+            }
+        }
+
+        /** Bytes consumed so far, for progress reporting. */
+        public long getBytesRead() { return bytesRead; }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /** Bytes before the payload of a block in a file of this version. */
+    static int headerBytes(int version) {
+        return version == 1 ? 9 : version == 2 ? 17 : 18;
+    }
+
+    public static final class Block {
+        private final byte kind;
+        private final int codecs;
+        private final int recordCount;
+        private final byte[] payload;
+        private final BlockCodecs decoders;
+        private final int index;
+
+        /**
+         * @param codecs   flags of the codecs that encoded {@code payload}
+         * @param decoders what to decode it with
+         * @param index    the position its encryption is bound to, or -1 if it predates version 4
+         */
+        Block(byte kind, int codecs, int recordCount, byte[] payload, BlockCodecs decoders, int index) {
+            this.kind = kind;
+            this.codecs = codecs;
+            this.recordCount = recordCount;
+            this.payload = payload;
+            this.decoders = decoders;
+            this.index = index;
+        }
+
+        public byte getKind() { return kind; }
+        public int getCodecs() { return codecs; }
+        public int getRecordCount() { return recordCount; }
+        public int getIndex() { return index; }
+
+        /** The same block, taken to be bound to position {@code index}. */
+        Block at(int index) {
+            return new Block(kind, codecs, recordCount, payload, decoders, index);
+        }
+
+        /** Deserializes the records (converting pre-unification ones); safe to call from any thread. */
+        public List<?> decode() throws IOException, ClassNotFoundException {
+            try (ObjectInputStream ois = new LegacyFormat.Input(decoders.decoding(codecs, index < 0 ? null : context(kind, codecs, recordCount, index), new ByteArrayInputStream(payload)))) {
+                return (List<?>) ois.readObject();
+            }
+        }
+    }
+}
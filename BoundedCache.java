@@ -0,0 +1,159 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Size-bounded in-memory cache with write-back of dirty entries and hit/miss counters.
+ *
+ * LRU evicts the least recently used entry. TINY_LFU additionally keeps a small frequency
+ * sketch and only lets a clean entry in if it has been asked for more often than the entry
+ * it would evict, so a one-off scan through history can't flush the hot working set.
+ * Dirty entries are always admitted and are handed to the write-back callback on eviction
+ * or {@link #flush()}, never dropped.
+ */
+public class BoundedCache<K, V> {
+    public enum Policy { LRU, TINY_LFU }
+
+    private final int capacity;
+    private final Policy policy;
+    private final BiConsumer<K, V> writeBack;
+    private final LinkedHashMap<K, Entry<V>> entries;
+    private final FrequencySketch sketch;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long rejections;
+    private long writeBacks;
+
+    public BoundedCache(int capacity, Policy policy, BiConsumer<K, V> writeBack) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive");
+        this.capacity = capacity;
+        this.policy = policy;
+        this.writeBack = writeBack;
+        this.entries = new LinkedHashMap<>(Math.min(capacity, 1 << 16), 0.75f, true);
+        this.sketch = policy == Policy.TINY_LFU ? new FrequencySketch(capacity) : null;
+    }
+
+    public synchronized V get(K key) {
+        if (sketch != null) sketch.increment(key);
+        Entry<V> e = entries.get(key);
+        if (e == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return e.value;
+    }
+
+    /** Caches {@code value}; a dirty entry is written back before it ever leaves the cache. */
+    public synchronized void put(K key, V value, boolean dirty) {
+        Entry<V> existing = entries.get(key);
+        if (existing != null) {
+            existing.value = value;
+            existing.dirty |= dirty;
+            return;
+        }
+        if (entries.size() >= capacity) {
+            Map.Entry<K, Entry<V>> victim = entries.entrySet().iterator().next();
+            if (!dirty && sketch != null && sketch.frequency(key) <= sketch.frequency(victim.getKey())) {
+                rejections++;
+                return;
+            }
+            evict(victim.getKey(), victim.getValue());
+        }
+        entries.put(key, new Entry<>(value, dirty));
+    }
+
+    /** Writes back every dirty entry and marks it clean. */
+    public synchronized void flush() {
+        for (Map.Entry<K, Entry<V>> e : entries.entrySet()) {
+            if (e.getValue().dirty) {
+                writeBack.accept(e.getKey(), e.getValue().value);
+                writeBacks++;
+                e.getValue().dirty = false;
+            }
+        }
+    }
+
+    private void evict(K key, Entry<V> entry) {
+        if (entry.dirty) {
+            writeBack.accept(key, entry.value);
+            writeBacks++;
+        }
+        Iterator<K> it = entries.keySet().iterator();
+        it.next();
+        it.remove();
+        evictions++;
+    }
+
+    public synchronized int size() { return entries.size(); }
+
+    public synchronized String stats() {
+        long lookups = hits + misses;
+        return String.format("%s cache %d/%d entries, hits=%d misses=%d (%.1f%% hit), evictions=%d, rejected=%d, write-backs=%d",
+                policy, entries.size(), capacity, hits, misses, lookups == 0 ? 0.0 : 100.0 * hits / lookups,
+                evictions, rejections, writeBacks);
+    }
+
+    private static final class Entry<V> {
+        V value;
+        boolean dirty;
+
+        Entry(V value, boolean dirty) {
+            this.value = value;
+            this.dirty = dirty;
+        }
+    }
+
+    // Count-min sketch with 4-bit style saturating counters, halved periodically so old popularity fades
+    private static final class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int MAX_COUNT = 15;
+        private final int[][] table;
+        private final int mask;
+        private final int resetAt;
+        private int additions;
+
+        FrequencySketch(int capacity) {
+            int width = Integer.highestOneBit(Math.max(16, capacity * 4 - 1)) << 1;
+            table = new int[DEPTH][width];
+            mask = width - 1;
+            resetAt = capacity * 10;
+        }
+
+        void increment(Object key) {
+            int h = spread(key.hashCode());
+            for (int i = 0; i < DEPTH; i++) {
+                int idx = index(h, i);
+                if (table[i][idx] < MAX_COUNT) table[i][idx]++;
+            }
+            if (++additions >= resetAt) {
+                for (int[] row : table) {
+                    for (int j = 0; j < row.length; j++) row[j] >>>= 1;
+                }
+                additions /= 2;
+            }
+        }
+
+        int frequency(Object key) {
+            int h = spread(key.hashCode());
+            int min = MAX_COUNT;
+            for (int i = 0; i < DEPTH; i++) min = Math.min(min, table[i][index(h, i)]);
+            return min;
+        }
+
+        private int index(int h, int row) {
+            h += row * 0x9E3779B9;
+            h ^= h >>> 16;
+            return (h * 0x85EBCA6B) >>> 8 & mask;
+        }
+
+        private static int spread(int h) {
+            h ^= h >>> 17;
+            h *= 0xED5AD4BB;
+            return h ^ (h >>> 11);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.UnaryOperator;
+
+/**
+ * Append-only on-disk record store with a {@link BoundedCache} in front of it.
+ *
+ * Only the key-to-offset index lives permanently on the heap; record bodies are read back
+ * on demand and kept in the cache while they are hot. Updates land in the cache as dirty
+ * entries and are appended to the file on eviction or {@link #flush()}; the newest copy of a
+ * key wins when the file is reopened. Once superseded copies make up most of the file, a flush
+ * rewrites it with only the live records, so the file doesn't grow without bound.
+ */
+public class DiskBackedStore<V extends Serializable> implements Closeable {
+    // Don't bother rewriting small files, however much of them is dead
+    private static final long MIN_COMPACT_BYTES = 1 << 20;
+
+    private final File path;
+    private RandomAccessFile file;
+    private final Map<String, Long> offsets = new HashMap<>();
+    private final BoundedCache<String, V> cache;
+    // Bytes taken up by superseded copies of records
+    private long deadBytes;
+
+    public DiskBackedStore(File path, int cacheSize, BoundedCache.Policy policy) throws IOException {
+        this.path = path;
+        this.file = new RandomAccessFile(path, "rw");
+        this.cache = new BoundedCache<>(cacheSize, policy, this::append);
+        try {
+            rebuildIndex();
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    public synchronized boolean contains(String key) {
+        return offsets.containsKey(key);
+    }
+
+    public synchronized Optional<V> get(String key) {
+        V cached = cache.get(key);
+        if (cached != null) return Optional.of(cached);
+        Long offset = offsets.get(key);
+        if (offset == null) return Optional.empty();
+        V loaded = read(offset);
+        cache.put(key, loaded, false);
+        return Optional.of(loaded);
+    }
+
+    /** Stores {@code value}; it reaches the disk on eviction or the next flush. */
+    public synchronized void put(String key, V value) {
+        cache.put(key, value, true);
+        // Reserve the key so contains() works even if the entry is written back later
+        offsets.putIfAbsent(key, -1L);
+    }
+
+    public synchronized Optional<V> update(String key, UnaryOperator<V> fn) {
+        Optional<V> updated = get(key).map(fn);
+        updated.ifPresent(v -> cache.put(key, v, true));
+        return updated;
+    }
+
+    public synchronized int size() {
+        return offsets.size();
+    }
+
+    public synchronized void flush() throws IOException {
+        try {
+            cache.flush();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        file.getFD().sync();
+        if (deadBytes >= MIN_COMPACT_BYTES && deadBytes > file.length() / 2) compact();
+    }
+
+    public String stats() {
+        return cache.stats();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        file.close();
+    }
+
+    private void append(String key, V value) {
+        try {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            try (ObjectOutputStream oos = new ObjectOutputStream(buf)) {
+                oos.writeObject(value);
+            }
+            long offset = file.length();
+            file.seek(offset);
+            file.writeUTF(key);
+            file.writeInt(buf.size());
+            file.write(buf.toByteArray());
+            Long previous = offsets.put(key, offset);
+            if (previous != null && previous >= 0) deadBytes += recordLength(previous);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write " + key + " to " + path, e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private V read(long offset) {
+        try {
+            file.seek(offset);
+            file.readUTF();
+            byte[] body = new byte[file.readInt()];
+            file.readFully(body);
+            // Records written before the models were unified are converted as they are read
+            try (ObjectInputStream ois = new LegacyFormat.Input(new ByteArrayInputStream(body))) {
+                return (V) ois.readObject();
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            throw new UncheckedIOException("Failed to read record at " + offset + " in " + path,
+                    e instanceof IOException ? (IOException) e : new IOException(e));
+        }
+    }
+
+    // Header and body length of the record at offset
+    private long recordLength(long offset) throws IOException {
+        file.seek(offset);
+        file.readUTF();
+        int size = file.readInt();
+        return file.getFilePointer() - offset + size;
+    }
+
+    // Copies the live records to a new file in offset order and renames it over the old one
+    private void compact() throws IOException {
+        List<Map.Entry<String, Long>> live = new ArrayList<>(offsets.entrySet());
+        live.sort(Map.Entry.comparingByValue());
+        Map<String, Long> moved = new HashMap<>();
+        File tmp = File.createTempFile(path.getName() + ".", ".tmp", path.getAbsoluteFile().getParentFile());
+        try {
+            try (FileOutputStream fos = new FileOutputStream(tmp)) {
+                OutputStream out = new BufferedOutputStream(fos);
+                long pos = 0;
+                for (Map.Entry<String, Long> e : live) {
+                    byte[] record = new byte[(int) recordLength(e.getValue())];
+                    file.seek(e.getValue());
+                    file.readFully(record);
+                    out.write(record);
+                    moved.put(e.getKey(), pos);
+                    pos += record.length;
+                }
+                out.flush();
+                fos.getFD().sync();
+            }
+            file.close();
+            try {
+                Files.move(tmp.toPath(), path.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                file = new RandomAccessFile(path, "rw");
+            }
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+        offsets.putAll(moved);
+        deadBytes = 0;
+    }
+
+    // Streams through the file once, keeping only the latest offset per key
+    private void rebuildIndex() throws IOException {
+        long length = file.length();
+        long pos = 0;
+        file.seek(0);
+        try {
+            while (pos < length) {
+                String key = file.readUTF();
+                int size = file.readInt();
+                // Appends never write a negative size, so this is damage rather than a torn tail
+                if (size < 0) throw new IOException("Damaged record at offset " + pos + " in " + path + ": size " + size);
+                long next = file.getFilePointer() + size;
+                if (next > length) break;
+                Long previous = offsets.put(key, pos);
+                if (previous != null) deadBytes += recordLength(previous);
+                pos = next;
+                file.seek(pos);
+            }
+        } catch (EOFException e) {
+            // Torn tail from an interrupted append; fall through and cut it off
+        }
+        if (pos < length) file.setLength(pos);
+    }
+}
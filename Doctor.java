@@ -1,7 +1,11 @@
-public class Doctor {
-    private String doctorId;
-    private String name;
-    private String department;
+import java.io.Serializable;
+
+// Immutable, shared by the console app, the GUI and the shard nodes
+public class Doctor implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private final String doctorId;
+    private final String name;
+    private final String department;
 
     public Doctor(String doctorId, String name, String department) {
         this.doctorId = doctorId;
@@ -26,4 +30,9 @@ public class Doctor {
         System.out.println("Name: " + name);
         System.out.println("Department: " + department);
     }
+
+    @Override
+    public String toString() {
+        return name + " (" + doctorId + ")";
+    }
 }
@@ -1,20 +1,32 @@
-import java.util.ArrayList;
+import java.io.File;
+import java.io.IOException;
+import java.util.Optional;
 import java.util.Scanner;
 
 public class HospitalManagement {
-    private static ArrayList<Doctor> doctors = new ArrayList<>();
-    private static ArrayList<Patient> patients = new ArrayList<>();
+    // Same registry, data file and archive as the GUI; don't run both on one directory at once
+    private static HospitalService service;
+    private static final int PAGE_SIZE = 20;
+    private static SessionManager sessions;
+    private static SessionManager.Session session;
 
     public static void main(String[] args) {
         Scanner sc = new Scanner(System.in);
+        try {
+            sessions = new SessionManager(new UserStore(new File(UserStore.DEFAULT_FILE)), 0);
+            service = new HospitalService(HospitalService.openDefaultArchive(), AuditLog.shared());
+        } catch (IOException e) {
+            System.out.println("Failed to open data files: " + e.getMessage());
+            sc.close();
+            return;
+        }
 
         // 🔐 Login Section
-        boolean loggedIn = false;
         int attempts = 3;
 
-        while (attempts > 0 && !loggedIn) {
-            loggedIn = login(sc);
-            if (!loggedIn) {
+        while (attempts > 0 && session == null) {
+            session = login(sc);
+            if (session == null) {
                 attempts--;
                 System.out.println("Attempts left: " + attempts);
                 if (attempts == 0) {
@@ -25,6 +37,17 @@ public class HospitalManagement {
             }
         }
 
+        try {
+            service.load(new File(HospitalService.DEFAULT_DATA_FILE));
+        } catch (IOException | ClassNotFoundException e) {
+            // Never carry on with a partial census: the next save would overwrite the rest
+            System.out.println("Failed to load " + HospitalService.DEFAULT_DATA_FILE + ": " + e.getMessage());
+            if (!BlockCodecs.isKeyError(e)) System.out.println("Run 'java RecoveryTool " + HospitalService.DEFAULT_DATA_FILE + "' to salvage it.");
+            sc.close();
+            return;
+        }
+        System.out.println("Loaded " + service.doctors().snapshot().size() + " doctors and " + service.patients().snapshot().size() + " patients.");
+
         // Main Menu
         int choice;
         do {
@@ -34,7 +57,8 @@ public class HospitalManagement {
             System.out.println("3. Assign Doctor to Patient");
             System.out.println("4. Generate Bill");
             System.out.println("5. Show Patient List by Department");
-            System.out.println("6. Exit");
+            System.out.println("6. Write Patient Report");
+            System.out.println("7. Exit");
             System.out.print("Enter your choice: ");
             choice = sc.nextInt();
             sc.nextLine(); // consume newline
@@ -56,21 +80,24 @@ public class HospitalManagement {
                     showPatientsByDepartment(sc);
                     break;
                 case 6:
+                    writeReport(sc);
+                    break;
+                case 7:
+                    save();
+                    for (String line : sessions.report()) System.out.println(line);
+                    sessions.logout(session);
                     System.out.println("Exiting...");
                     break;
                 default:
                     System.out.println("Invalid choice! Try again.");
             }
-        } while (choice != 6);
+        } while (choice != 7);
 
         sc.close();
     }
 
     // 🔐 Login Method
-    private static boolean login(Scanner sc) {
-        String username = "admin";
-        String password = "12345";
-
+    private static SessionManager.Session login(Scanner sc) {
         System.out.println("\n===== Login =====");
         System.out.print("Enter Username: ");
         String userInput = sc.nextLine();
@@ -78,12 +105,13 @@ public class HospitalManagement {
         System.out.print("Enter Password: ");
         String passInput = sc.nextLine();
 
-        if (userInput.equals(username) && passInput.equals(password)) {
+        Optional<SessionManager.Session> s = sessions.login(userInput, passInput.toCharArray());
+        if (s.isPresent()) {
             System.out.println("\n✅ Login Successful!\n");
-            return true;
+            return s.get();
         } else {
             System.out.println("\n❌ Invalid username or password.\n");
-            return false;
+            return null;
         }
     }
 
@@ -95,8 +123,11 @@ public class HospitalManagement {
         String name = sc.nextLine();
         System.out.print("Enter Department: ");
         String dept = sc.nextLine();
-        doctors.add(new Doctor(id, name, dept));
-        System.out.println("Doctor added successfully!");
+        if (session.call("addDoctor", () -> service.addDoctor(new Doctor(id, name, dept)))) {
+            System.out.println("Doctor added successfully!");
+        } else {
+            System.out.println("Doctor with this ID already exists!");
+        }
     }
 
     // ➕ Add Patient
@@ -107,8 +138,11 @@ public class HospitalManagement {
         String name = sc.nextLine();
         System.out.print("Enter Department: ");
         String dept = sc.nextLine();
-        patients.add(new Patient(id, name, dept));
-        System.out.println("Patient added successfully!");
+        if (session.call("addPatient", () -> service.addPatient(new Patient(id, name, dept)))) {
+            System.out.println("Patient added successfully!");
+        } else {
+            System.out.println("Patient with this ID already exists!");
+        }
     }
 
     // 🔁 Assign Doctor to Patient
@@ -118,25 +152,9 @@ public class HospitalManagement {
         System.out.print("Enter Doctor ID: ");
         String did = sc.nextLine();
 
-        Patient patient = null;
-        Doctor doctor = null;
-
-        for (Patient p : patients) {
-            if (p.getPatientId().equals(pid)) {
-                patient = p;
-                break;
-            }
-        }
-
-        for (Doctor d : doctors) {
-            if (d.getDoctorId().equals(did)) {
-                doctor = d;
-                break;
-            }
-        }
-
-        if (patient != null && doctor != null) {
-            patient.assignDoctor(doctor);
+        Optional<Patient> assigned = session.call("assignDoctor", () -> service.assignDoctor(pid, did));
+        if (assigned.isPresent()) {
+            System.out.println("Doctor " + service.doctorName(did) + " assigned to patient " + assigned.get().getName());
         } else {
             System.out.println("Invalid Patient ID or Doctor ID!");
         }
@@ -150,25 +168,67 @@ public class HospitalManagement {
         double amount = sc.nextDouble();
         sc.nextLine(); // consume newline
 
-        for (Patient p : patients) {
-            if (p.getPatientId().equals(pid)) {
-                p.generateBill(amount);
-                return;
-            }
+        Optional<Patient> billed = session.call("generateBill", () -> service.bill(pid, amount));
+        if (billed.isPresent()) {
+            System.out.println("Bill for patient " + billed.get().getName() + ": $" + amount);
+            System.out.printf("Outstanding: $%.2f%n", billed.get().getOutstandingBill());
+        } else {
+            System.out.println("Patient not found!");
         }
-        System.out.println("Patient not found!");
     }
 
-    // 📋 Show Patients by Department
+    // 📝 Write Patient Report
+    private static void writeReport(Scanner sc) {
+        System.out.print("Enter Patient ID: ");
+        String pid = sc.nextLine();
+        System.out.print("Enter Diagnosis: ");
+        String diagnosis = sc.nextLine();
+        System.out.print("Enter Prescription: ");
+        String prescription = sc.nextLine();
+
+        Optional<Report> report = session.call("writeReport", () -> service.writeReport(pid, diagnosis, prescription));
+        if (report.isPresent()) {
+            report.get().displayReport();
+        } else {
+            System.out.println("Patient not found!");
+        }
+    }
+
+    // 📋 Show Patients by Department, a page at a time (also takes filters like "bill>=100 unassigned")
     private static void showPatientsByDepartment(Scanner sc) {
         System.out.print("Enter Department: ");
         String dept = sc.nextLine();
+        if (dept.trim().isEmpty()) {
+            System.out.println("Please enter a department.");
+            return;
+        }
+        String cursor = null;
         System.out.println("Patients in " + dept + " Department:");
-        for (Patient p : patients) {
-            if (p.getDepartment().equalsIgnoreCase(dept)) {
-                p.displayPatient();
+        do {
+            PatientQuery query = service.query().sortBy(PatientQuery.Sort.NAME, false).limit(PAGE_SIZE).after(cursor);
+            PatientQuery.Page page;
+            try {
+                page = session.call("searchByDepartment", () -> query.matching(dept, service.history()).page());
+            } catch (IllegalArgumentException e) {
+                System.out.println(e.getMessage());
+                return;
+            }
+            for (Patient p : page.getItems()) {
+                p.displayPatient(service.doctorName(p.getAssignedDoctorId()));
                 System.out.println("----------------");
             }
+            cursor = page.getNextCursor();
+            if (cursor != null) System.out.print("Press Enter for more, or q to stop: ");
+        } while (cursor != null && !sc.nextLine().trim().equalsIgnoreCase("q"));
+    }
+
+    // 💾 Save on exit, to the same file the GUI uses
+    private static void save() {
+        try {
+            service.save(new File(HospitalService.DEFAULT_DATA_FILE));
+            System.out.println("Data saved.");
+        } catch (IOException e) {
+            System.out.println("Failed to save data: " + e.getMessage());
         }
     }
 }
@@ -4,31 +4,99 @@ import javax.swing.table.DefaultTableModel;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
 
 public class HospitalManagementGUI {
     private static final Logger LOGGER = Logger.getLogger(HospitalManagementGUI.class.getName());
-    private static final String DATA_FILE = "hospital_data.ser";
+    private static final String DATA_FILE = HospitalService.DEFAULT_DATA_FILE;
+    private static final byte DOCTOR_BLOCK = HospitalService.DOCTOR_BLOCK;
+    private static final byte PATIENT_BLOCK = HospitalService.PATIENT_BLOCK;
+    private static final byte APPOINTMENT_BLOCK = 'A';
+    private static final long SLOT_SEARCH_WINDOW_MS = 7L * 24 * 60 * 60 * 1000;
+    private static final long SESSION_IDLE_TIMEOUT_MS = Long.getLong("hms.session.idleTimeoutMs", 0L);
+    private static final DateTimeFormatter SLOT_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+    private static final int RECORDS_PER_BLOCK = HospitalService.RECORDS_PER_BLOCK;
 
-    // Application state (Model)
-    private final List<Doctor> doctors = new ArrayList<>();
-    private final List<Patient> patients = new ArrayList<>();
+    // Application state (Model) - shared with the console app; the stores are copy-on-write,
+    // so readers work on immutable snapshots. Discharged patients live in the service's archive.
+    private final HospitalService service;
+    private final VersionedStore<Doctor> doctors;
+    private final VersionedStore<Patient> patients;
+    // Admissions, assignments, bill items and discharges, recorded by the service
+    private final VisitHistory history;
+    private final AppointmentScheduler scheduler = new AppointmentScheduler();
 
     // Swing components (View)
     private final JFrame frame = new JFrame("Hospital Management System");
     private final DefaultTableModel doctorTableModel = new DefaultTableModel(new String[]{"ID", "Name", "Department"}, 0);
     private final DefaultTableModel patientTableModel = new DefaultTableModel(new String[]{"ID", "Name", "Department", "Assigned Doctor", "Outstanding Bill"}, 0);
+    private final JLabel status = new JLabel("Ready");
+
+    // Load progress in percent while the data file is still streaming in, -1 once fully loaded
+    private volatile int loadProgress = 0;
+
+    // Logged-in operator; model operations run through it (see call) so they are timed per user
+    private final SessionManager sessions;
+    private SessionManager.Session session;
+
+    // Replication: a primary ships its mutations on shipPort; a standby applies those of primaryAddress
+    private final int shipPort;
+    private final String primaryAddress;
+    private JournalShipper journal;
+    private JournalReceiver receiver;
+    // Patients and appointments named by the snapshot being received; whatever else the standby
+    // holds was discharged or cancelled meanwhile
+    private Set<String> resyncSeen;
+    private Set<String> resyncBooked;
+    private volatile boolean standby;
+    private final List<JButton> mutatingButtons = new ArrayList<>();
+    // Tables follow the stores through coalesced row-level updates rather than full rebuilds
+    private final TableRefresher<Doctor> doctorRows;
+    private final TableRefresher<Patient> patientRows;
 
     // Constructor sets up UI and event wiring (Controller)
-    public HospitalManagementGUI() {
+    public HospitalManagementGUI(SessionManager sessions, SessionManager.Session session, int shipPort, String primaryAddress) {
+        this.sessions = sessions;
+        this.session = session;
+        this.shipPort = shipPort;
+        this.primaryAddress = primaryAddress;
+        this.standby = primaryAddress != null;
+        frame.setTitle("Hospital Management System - " + session.getUsername() + (standby ? " (standby of " + primaryAddress + ")" : ""));
         setupLookAndFeel();
+        this.service = new HospitalService(openArchive(), AuditLog.shared());
+        this.doctors = service.doctors();
+        this.patients = service.patients();
+        this.history = service.history();
+        this.doctorRows = new TableRefresher<>(doctorTableModel, doctors::get, () -> doctors.snapshot().values(), Doctor::getDoctorId,
+                d -> new Object[]{d.getDoctorId(), d.getName(), d.getDepartment()});
+        this.patientRows = new TableRefresher<>(patientTableModel, patients::get, () -> patients.snapshot().values(), Patient::getPatientId,
+                p -> new Object[]{p.getPatientId(), p.getName(), p.getDepartment(), service.doctorName(p.getAssignedDoctorId()), p.getOutstandingBill()});
         setupUI();
-        loadDataInBackground();
+        // Show the window right away; records stream into the tables as they are decoded
+        frame.setVisible(true);
+        if (standby) {
+            startStandby();
+        } else {
+            loadDataInBackground();
+        }
     }
 
     private void setupLookAndFeel() {
@@ -39,6 +107,19 @@ public class HospitalManagementGUI {
         }
     }
 
+    private DiskBackedStore<Patient> openArchive() {
+        try {
+            DiskBackedStore<Patient> archive = HospitalService.openDefaultArchive();
+            LOGGER.info("Opened " + HospitalService.DEFAULT_ARCHIVE_FILE + " with " + archive.size() + " discharged patients");
+            return archive;
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Failed to open patient archive", e);
+            JOptionPane.showMessageDialog(null, "Failed to open patient archive: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            System.exit(1);
+            return null;
+        }
+    }
+
     private void setupUI() {
         frame.setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
         frame.addWindowListener(new WindowAdapter() {
@@ -58,13 +139,27 @@ public class HospitalManagementGUI {
         JButton addPatientBtn = new JButton("Add Patient");
         JButton assignBtn = new JButton("Assign Doctor");
         JButton billBtn = new JButton("Generate Bill");
+        JButton reportBtn = new JButton("Write Report");
+        JButton dischargeBtn = new JButton("Discharge");
+        JButton historyBtn = new JButton("Visit History");
+        JButton bookBtn = new JButton("Book Appointment");
+        JButton appointmentsBtn = new JButton("Appointments");
         JButton saveBtn = new JButton("Save");
+        JButton sessionsBtn = new JButton("Session Stats");
         toolbar.add(addDoctorBtn);
         toolbar.add(addPatientBtn);
         toolbar.add(assignBtn);
         toolbar.add(billBtn);
+        toolbar.add(reportBtn);
+        toolbar.add(dischargeBtn);
+        toolbar.add(historyBtn);
+        toolbar.add(bookBtn);
+        toolbar.add(appointmentsBtn);
         toolbar.addSeparator();
         toolbar.add(saveBtn);
+        toolbar.add(sessionsBtn);
+        mutatingButtons.addAll(Arrays.asList(addDoctorBtn, addPatientBtn, assignBtn, billBtn, reportBtn, dischargeBtn, bookBtn, saveBtn));
+        for (JButton b : mutatingButtons) b.setEnabled(!standby);
 
         root.add(toolbar, BorderLayout.NORTH);
 
@@ -88,6 +183,8 @@ public class HospitalManagementGUI {
         JPanel searchPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
         searchPanel.add(new JLabel("Search Patients by Department:"));
         JTextField searchField = new JTextField(20);
+        searchField.setToolTipText("<html>A department, optionally with: doctor:ID, unassigned, name:Prefix, bill&gt;=N, bill&lt;=N,<br>"
+                + "admitted&gt;=YYYY-MM-DD, admitted&lt;YYYY-MM-DD, sort:name (or sort:-bill)</html>");
         JButton searchBtn = new JButton("Search");
         JButton clearSearchBtn = new JButton("Clear");
         searchPanel.add(searchField);
@@ -95,7 +192,6 @@ public class HospitalManagementGUI {
         searchPanel.add(clearSearchBtn);
         bottom.add(searchPanel, BorderLayout.NORTH);
 
-        JLabel status = new JLabel("Ready");
         bottom.add(status, BorderLayout.SOUTH);
         root.add(bottom, BorderLayout.SOUTH);
 
@@ -104,12 +200,19 @@ public class HospitalManagementGUI {
         addPatientBtn.addActionListener(e -> showAddPatientDialog());
         assignBtn.addActionListener(e -> showAssignDoctorDialog());
         billBtn.addActionListener(e -> showGenerateBillDialog());
-        saveBtn.addActionListener(e -> saveDataInBackground(status));
+        reportBtn.addActionListener(e -> showWriteReportDialog());
+        dischargeBtn.addActionListener(e -> showDischargeDialog());
+        historyBtn.addActionListener(e -> showVisitHistoryDialog());
+        bookBtn.addActionListener(e -> showBookAppointmentDialog());
+        appointmentsBtn.addActionListener(e -> showAppointmentsDialog());
+        saveBtn.addActionListener(e -> saveDataInBackground(null));
+        sessionsBtn.addActionListener(e -> showSessionStats());
 
-        searchBtn.addActionListener(e -> filterPatientsByDepartment(searchField.getText().trim()));
+        searchBtn.addActionListener(e -> filterPatients(searchField.getText().trim()));
+        searchField.addActionListener(e -> filterPatients(searchField.getText().trim()));
         clearSearchBtn.addActionListener(e -> {
             searchField.setText("");
-            refreshPatientTable();
+            filterPatients("");
         });
 
         // Double-click patient to view details
@@ -148,15 +251,14 @@ public class HospitalManagementGUI {
             String name = nameField.getText().trim();
             String dept = deptField.getText().trim();
             if (validateIdNameDept(id, name, dept)) {
-                synchronized (doctors) {
-                    if (findDoctorById(id).isPresent()) {
-                        JOptionPane.showMessageDialog(frame, "Doctor with this ID already exists.", "Validation Error", JOptionPane.WARNING_MESSAGE);
-                        return;
-                    }
-                    Doctor d = new Doctor(id, name, dept);
-                    doctors.add(d);
-                    doctorTableModel.addRow(new Object[]{d.getDoctorId(), d.getName(), d.getDepartment()});
+                Doctor d = new Doctor(id, name, dept);
+                if (!call("addDoctor", () -> service.addDoctor(d))) {
+                    JOptionPane.showMessageDialog(frame, "Doctor with this ID already exists.", "Validation Error", JOptionPane.WARNING_MESSAGE);
+                    return;
                 }
+                scheduler.registerDoctor(d.getDoctorId(), d.getDepartment());
+                replicate(JournalEntry.Op.ADD_DOCTOR, 0, d.getDoctorId(), d.getName(), d.getDepartment());
+                doctorRows.changed(d.getDoctorId());
             } else {
                 JOptionPane.showMessageDialog(frame, "Please enter valid non-empty values.", "Validation Error", JOptionPane.WARNING_MESSAGE);
             }
@@ -181,15 +283,13 @@ public class HospitalManagementGUI {
             String name = nameField.getText().trim();
             String dept = deptField.getText().trim();
             if (validateIdNameDept(id, name, dept)) {
-                synchronized (patients) {
-                    if (findPatientById(id).isPresent()) {
-                        JOptionPane.showMessageDialog(frame, "Patient with this ID already exists.", "Validation Error", JOptionPane.WARNING_MESSAGE);
-                        return;
-                    }
-                    Patient p = new Patient(id, name, dept);
-                    patients.add(p);
-                    patientTableModel.addRow(new Object[]{p.getPatientId(), p.getName(), p.getDepartment(), p.getAssignedDoctorName(), p.getOutstandingBill()});
+                Patient p = new Patient(id, name, dept);
+                if (!call("addPatient", () -> service.addPatient(p))) {
+                    JOptionPane.showMessageDialog(frame, "Patient with this ID already exists.", "Validation Error", JOptionPane.WARNING_MESSAGE);
+                    return;
                 }
+                replicate(JournalEntry.Op.ADD_PATIENT, 0, p.getPatientId(), p.getName(), p.getDepartment());
+                patientRows.changed(p.getPatientId());
             } else {
                 JOptionPane.showMessageDialog(frame, "Please enter valid non-empty values.", "Validation Error", JOptionPane.WARNING_MESSAGE);
             }
@@ -201,29 +301,34 @@ public class HospitalManagementGUI {
         if (pid == null || pid.trim().isEmpty()) return;
         Optional<Patient> optP = findPatientById(pid.trim());
         if (!optP.isPresent()) {
-            JOptionPane.showMessageDialog(frame, "Patient not found.", "Error", JOptionPane.ERROR_MESSAGE);
+            JOptionPane.showMessageDialog(frame, notFoundMessage("Patient"), "Error", JOptionPane.ERROR_MESSAGE);
             return;
         }
         Patient p = optP.get();
 
-        String[] docIds;
-        synchronized (doctors) {
-            if (doctors.isEmpty()) {
-                JOptionPane.showMessageDialog(frame, "No doctors registered.", "Error", JOptionPane.ERROR_MESSAGE);
-                return;
-            }
-            docIds = doctors.stream().map(Doctor::getDoctorId).toArray(String[]::new);
+        List<Doctor> registered = doctors.snapshot().values();
+        if (registered.isEmpty()) {
+            JOptionPane.showMessageDialog(frame, "No doctors registered.", "Error", JOptionPane.ERROR_MESSAGE);
+            return;
         }
+        String[] docIds = registered.stream().map(Doctor::getDoctorId).toArray(String[]::new);
 
         String did = (String) JOptionPane.showInputDialog(frame, "Select Doctor:", "Assign Doctor", JOptionPane.PLAIN_MESSAGE, null, docIds, docIds[0]);
         if (did == null) return;
         Optional<Doctor> optD = findDoctorById(did);
         if (!optD.isPresent()) {
-            JOptionPane.showMessageDialog(frame, "Doctor not found.", "Error", JOptionPane.ERROR_MESSAGE);
+            JOptionPane.showMessageDialog(frame, notFoundMessage("Doctor"), "Error", JOptionPane.ERROR_MESSAGE);
             return;
         }
-        p.assignDoctor(optD.get());
-        refreshPatientTable();
+        Doctor d = optD.get();
+        Optional<Patient> assigned = call("assignDoctor", () -> service.assignDoctor(p.getPatientId(), d.getDoctorId()));
+        if (!assigned.isPresent()) {
+            // Discharged or removed while the dialog was open
+            JOptionPane.showMessageDialog(frame, notFoundMessage("Patient"), "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        replicate(JournalEntry.Op.SET_DOCTOR, 0, p.getPatientId(), d.getDoctorId());
+        patientRows.changed(p.getPatientId());
     }
 
     private void showGenerateBillDialog() {
@@ -231,7 +336,7 @@ public class HospitalManagementGUI {
         if (pid == null || pid.trim().isEmpty()) return;
         Optional<Patient> optP = findPatientById(pid.trim());
         if (!optP.isPresent()) {
-            JOptionPane.showMessageDialog(frame, "Patient not found.", "Error", JOptionPane.ERROR_MESSAGE);
+            JOptionPane.showMessageDialog(frame, notFoundMessage("Patient"), "Error", JOptionPane.ERROR_MESSAGE);
             return;
         }
         Patient p = optP.get();
@@ -241,57 +346,275 @@ public class HospitalManagementGUI {
         try {
             double amount = Double.parseDouble(amtStr);
             if (amount <= 0) throw new NumberFormatException("Amount must be positive");
-            p.generateBill(amount);
-            refreshPatientTable();
+            Optional<Patient> billed = call("generateBill", () -> service.bill(p.getPatientId(), amount));
+            billed.ifPresent(b -> replicate(JournalEntry.Op.SET_BILL, b.getOutstandingBill(), b.getPatientId()));
+            patientRows.changed(p.getPatientId());
             JOptionPane.showMessageDialog(frame, "Bill generated successfully.");
         } catch (NumberFormatException ex) {
             JOptionPane.showMessageDialog(frame, "Invalid amount. Enter a positive number.", "Validation Error", JOptionPane.WARNING_MESSAGE);
         }
     }
 
-    private void filterPatientsByDepartment(String dept) {
-        if (dept == null || dept.isEmpty()) {
-            refreshPatientTable();
+    private void showWriteReportDialog() {
+        JPanel panel = new JPanel(new GridLayout(0, 1, 6, 6));
+        JTextField pidField = new JTextField();
+        JTextField diagnosisField = new JTextField();
+        JTextField prescriptionField = new JTextField();
+        panel.add(new JLabel("Patient ID:"));
+        panel.add(pidField);
+        panel.add(new JLabel("Diagnosis:"));
+        panel.add(diagnosisField);
+        panel.add(new JLabel("Prescription:"));
+        panel.add(prescriptionField);
+
+        int result = JOptionPane.showConfirmDialog(frame, panel, "Write Report", JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+        if (result != JOptionPane.OK_OPTION) return;
+        String pid = pidField.getText().trim();
+        String diagnosis = diagnosisField.getText().trim();
+        String prescription = prescriptionField.getText().trim();
+        if (pid.isEmpty() || diagnosis.isEmpty()) {
+            JOptionPane.showMessageDialog(frame, "Patient ID and diagnosis are required.", "Validation Error", JOptionPane.WARNING_MESSAGE);
             return;
         }
-        DefaultTableModel model = patientTableModel;
-        model.setRowCount(0);
-        synchronized (patients) {
-            for (Patient p : patients) {
-                if (p.getDepartment().equalsIgnoreCase(dept)) {
-                    model.addRow(new Object[]{p.getPatientId(), p.getName(), p.getDepartment(), p.getAssignedDoctorName(), p.getOutstandingBill()});
+        Optional<Report> report = call("writeReport", () -> service.writeReport(pid, diagnosis, prescription));
+        if (!report.isPresent()) {
+            JOptionPane.showMessageDialog(frame, notFoundMessage("Patient"), "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        replicate(JournalEntry.Op.REPORT, 0, pid, diagnosis, prescription);
+        status.setText("Report written for " + pid + ": " + report.get().getSummary());
+    }
+
+    private void showDischargeDialog() {
+        String pid = JOptionPane.showInputDialog(frame, "Enter Patient ID to discharge:");
+        if (pid == null || pid.trim().isEmpty()) return;
+        Optional<Patient> removed = call("discharge", () -> service.discharge(pid.trim()));
+        if (!removed.isPresent()) {
+            JOptionPane.showMessageDialog(frame, notFoundMessage("Admitted patient"), "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        replicate(JournalEntry.Op.DISCHARGE, 0, removed.get().getPatientId());
+        patientRows.changed(removed.get().getPatientId());
+        status.setText("Discharged " + removed.get().getName() + " (" + service.archivedCount() + " in archive)");
+    }
+
+    private void showBookAppointmentDialog() {
+        JPanel panel = new JPanel(new GridLayout(0, 1, 6, 6));
+        JTextField pidField = new JTextField();
+        List<String> choices = new ArrayList<>();
+        choices.add("Any doctor in department");
+        for (Doctor d : doctors.snapshot().values()) choices.add(d.getDoctorId());
+        JComboBox<String> doctorBox = new JComboBox<>(choices.toArray(new String[0]));
+        JTextField deptField = new JTextField();
+        JTextField dateField = new JTextField(LocalDate.now().toString());
+        JTextField timeField = new JTextField("09:00");
+        JTextField durationField = new JTextField("30");
+        panel.add(new JLabel("Patient ID:"));
+        panel.add(pidField);
+        panel.add(new JLabel("Doctor:"));
+        panel.add(doctorBox);
+        panel.add(new JLabel("Department (blank for patient's own):"));
+        panel.add(deptField);
+        panel.add(new JLabel("Date (yyyy-mm-dd):"));
+        panel.add(dateField);
+        panel.add(new JLabel("Earliest Time (hh:mm):"));
+        panel.add(timeField);
+        panel.add(new JLabel("Duration (minutes):"));
+        panel.add(durationField);
+
+        int result = JOptionPane.showConfirmDialog(frame, panel, "Book Appointment", JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+        if (result != JOptionPane.OK_OPTION) return;
+        Optional<Patient> optP = findPatientById(pidField.getText().trim());
+        if (!optP.isPresent()) {
+            JOptionPane.showMessageDialog(frame, notFoundMessage("Patient"), "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        Patient p = optP.get();
+        long parsedStart;
+        long parsedDuration;
+        try {
+            parsedStart = LocalDateTime.of(LocalDate.parse(dateField.getText().trim()), LocalTime.parse(timeField.getText().trim()))
+                    .atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            parsedDuration = Long.parseLong(durationField.getText().trim()) * 60_000L;
+            if (parsedDuration <= 0) throw new NumberFormatException("Duration must be positive");
+        } catch (DateTimeParseException | NumberFormatException ex) {
+            JOptionPane.showMessageDialog(frame, "Invalid date, time or duration.", "Validation Error", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+        long start = parsedStart;
+        long duration = parsedDuration;
+
+        Optional<AppointmentScheduler.Appointment> booked;
+        if (doctorBox.getSelectedIndex() == 0) {
+            String dept = deptField.getText().trim().isEmpty() ? p.getDepartment() : deptField.getText().trim();
+            booked = call("bookAppointment", () -> scheduler.bookFirstAvailable(dept, p.getPatientId(), start, duration, start + SLOT_SEARCH_WINDOW_MS));
+        } else {
+            String did = (String) doctorBox.getSelectedItem();
+            booked = call("bookAppointment", () -> scheduler.book(did, p.getPatientId(), start, start + duration));
+            if (!booked.isPresent()) {
+                Optional<AppointmentScheduler.Slot> next = scheduler.findFreeSlot(did, p.getPatientId(), start, duration, start + SLOT_SEARCH_WINDOW_MS);
+                if (next.isPresent() && JOptionPane.showConfirmDialog(frame, "Doctor " + did + " or " + p.getName() + " is busy then. Next slot free for both is " + formatTime(next.get().getStart()) + ". Book it?",
+                        "Book Appointment", JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION) {
+                    AppointmentScheduler.Slot slot = next.get();
+                    booked = call("bookAppointment", () -> scheduler.book(did, p.getPatientId(), slot.getStart(), slot.getEnd()));
                 }
             }
         }
+        if (booked.isPresent()) {
+            AppointmentScheduler.Appointment a = booked.get();
+            replicate(JournalEntry.Op.BOOK, 0, a.getDoctorId(), a.getPatientId(), Long.toString(a.getStart()), Long.toString(a.getEnd()));
+            audit("BOOK", a.getPatientId(), a.getDoctorId() + "@" + a.getStart());
+            JOptionPane.showMessageDialog(frame, "Booked " + p.getName() + " with doctor " + a.getDoctorId() + " at " + formatTime(a.getStart()) + ".");
+        } else {
+            JOptionPane.showMessageDialog(frame, "No free slot found in the next 7 days.", "Book Appointment", JOptionPane.WARNING_MESSAGE);
+        }
     }
 
-    private void refreshPatientTable() {
-        DefaultTableModel model = patientTableModel;
-        model.setRowCount(0);
-        synchronized (patients) {
-            for (Patient p : patients) {
-                model.addRow(new Object[]{p.getPatientId(), p.getName(), p.getDepartment(), p.getAssignedDoctorName(), p.getOutstandingBill()});
-            }
+    // Upcoming appointments of one doctor or patient; a primary can cancel them from here
+    private void showAppointmentsDialog() {
+        JPanel panel = new JPanel(new GridLayout(0, 1, 6, 6));
+        JComboBox<String> whoBox = new JComboBox<>(new String[] {"Doctor", "Patient"});
+        JTextField idField = new JTextField();
+        panel.add(new JLabel("Appointments of:"));
+        panel.add(whoBox);
+        panel.add(new JLabel("ID:"));
+        panel.add(idField);
+        int result = JOptionPane.showConfirmDialog(frame, panel, "Appointments", JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+        if (result != JOptionPane.OK_OPTION) return;
+        String id = idField.getText().trim();
+        long now = System.currentTimeMillis();
+        List<AppointmentScheduler.Appointment> upcoming = whoBox.getSelectedIndex() == 0
+                ? scheduler.forDoctor(id, now, Long.MAX_VALUE)
+                : scheduler.forPatient(id, now, Long.MAX_VALUE);
+        if (upcoming.isEmpty()) {
+            JOptionPane.showMessageDialog(frame, "No upcoming appointments for " + id + ".", "Appointments", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        DefaultListModel<String> rows = new DefaultListModel<>();
+        for (AppointmentScheduler.Appointment a : upcoming) {
+            rows.addElement(formatTime(a.getStart()) + " - " + formatTime(a.getEnd()) + "   doctor " + a.getDoctorId() + ", patient " + a.getPatientId());
+        }
+        JList<String> list = new JList<>(rows);
+        list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        list.setVisibleRowCount(12);
+        JScrollPane view = new JScrollPane(list);
+        if (standby) {
+            JOptionPane.showMessageDialog(frame, view, "Appointments", JOptionPane.PLAIN_MESSAGE);
+            return;
+        }
+        String[] options = {"Cancel Appointment", "Close"};
+        int choice = JOptionPane.showOptionDialog(frame, view, "Appointments", JOptionPane.DEFAULT_OPTION, JOptionPane.PLAIN_MESSAGE, null, options, options[1]);
+        if (choice != 0) return;
+        if (list.getSelectedIndex() < 0) {
+            JOptionPane.showMessageDialog(frame, "Select an appointment to cancel.", "Validation Error", JOptionPane.WARNING_MESSAGE);
+            return;
         }
+        AppointmentScheduler.Appointment selected = upcoming.get(list.getSelectedIndex());
+        Optional<AppointmentScheduler.Appointment> cancelled = call("cancelAppointment", () -> scheduler.cancel(selected.getDoctorId(), selected.getStart()));
+        if (!cancelled.isPresent()) {
+            JOptionPane.showMessageDialog(frame, "That appointment was already cancelled.", "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        AppointmentScheduler.Appointment a = cancelled.get();
+        replicate(JournalEntry.Op.CANCEL, 0, a.getDoctorId(), Long.toString(a.getStart()));
+        audit("CANCEL", a.getPatientId(), a.getDoctorId() + "@" + a.getStart());
+        status.setText("Cancelled appointment of " + a.getPatientId() + " with doctor " + a.getDoctorId() + " at " + formatTime(a.getStart()));
     }
 
-    private void refreshDoctorTable() {
-        DefaultTableModel model = doctorTableModel;
-        model.setRowCount(0);
-        synchronized (doctors) {
-            for (Doctor d : doctors) {
-                model.addRow(new Object[]{d.getDoctorId(), d.getName(), d.getDepartment()});
-            }
+    private void showSessionStats() {
+        StringBuilder sb = new StringBuilder("Open sessions: " + sessions.openSessions() + "\n\n");
+        for (String line : sessions.report()) sb.append(line).append('\n');
+        JTextArea area = new JTextArea(sb.toString(), 8, 60);
+        area.setEditable(false);
+        JOptionPane.showMessageDialog(frame, new JScrollPane(area), "Session Stats", JOptionPane.INFORMATION_MESSAGE);
+    }
+
+    private static String formatTime(long epochMillis) {
+        return SLOT_FORMAT.format(Instant.ofEpochMilli(epochMillis).atZone(ZoneId.systemDefault()));
+    }
+
+    private void showVisitHistoryDialog() {
+        JPanel panel = new JPanel(new GridLayout(0, 1, 6, 6));
+        JComboBox<VisitEvent.Type> typeBox = new JComboBox<>(VisitEvent.Type.values());
+        typeBox.setSelectedItem(VisitEvent.Type.DOCTOR_ASSIGNED);
+        JTextField deptField = new JTextField();
+        JTextField fromField = new JTextField(LocalDate.now().minusDays(30).toString());
+        JTextField toField = new JTextField(LocalDate.now().toString());
+        panel.add(new JLabel("Event Type:"));
+        panel.add(typeBox);
+        panel.add(new JLabel("Department (blank for all):"));
+        panel.add(deptField);
+        panel.add(new JLabel("From (yyyy-mm-dd):"));
+        panel.add(fromField);
+        panel.add(new JLabel("To (yyyy-mm-dd, inclusive):"));
+        panel.add(toField);
+
+        int result = JOptionPane.showConfirmDialog(frame, panel, "Visit History", JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+        if (result != JOptionPane.OK_OPTION) return;
+        try {
+            ZoneId zone = ZoneId.systemDefault();
+            long from = LocalDate.parse(fromField.getText().trim()).atStartOfDay(zone).toInstant().toEpochMilli();
+            long to = LocalDate.parse(toField.getText().trim()).plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+            String dept = deptField.getText().trim();
+            List<VisitEvent> events = history.query((VisitEvent.Type) typeBox.getSelectedItem(), dept.isEmpty() ? null : dept, from, to);
+            showEventList("Visit History (" + events.size() + " events)", events);
+        } catch (DateTimeParseException ex) {
+            JOptionPane.showMessageDialog(frame, "Invalid date. Use yyyy-mm-dd.", "Validation Error", JOptionPane.WARNING_MESSAGE);
+        }
+    }
+
+    private void showEventList(String title, List<VisitEvent> events) {
+        JOptionPane.showMessageDialog(frame, eventListView(events), title, JOptionPane.PLAIN_MESSAGE);
+    }
+
+    private JScrollPane eventListView(List<VisitEvent> events) {
+        StringBuilder sb = new StringBuilder();
+        for (VisitEvent e : events) sb.append(e).append('\n');
+        JTextArea area = new JTextArea(events.isEmpty() ? "No events." : sb.toString(), 12, 60);
+        area.setEditable(false);
+        return new JScrollPane(area);
+    }
+
+    // The filter stays in force as records change, until the search is cleared
+    private void filterPatients(String text) {
+        if (text.isEmpty()) {
+            patientRows.setFilter(p -> true);
+            return;
+        }
+        PatientQuery query = service.query();
+        try {
+            query.matching(text, history);
+        } catch (IllegalArgumentException e) {
+            JOptionPane.showMessageDialog(frame, e.getMessage(), "Search", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+        List<Patient> matches = call("search", () -> query.stream().collect(Collectors.toList()));
+        // After the run, so explain() reports its plan instead of planning again
+        LOGGER.fine(() -> "Search '" + text + "': " + query.explain());
+        // A sorted search reorders the whole table; otherwise only the rows that differ change
+        if (query.isSorted()) {
+            patientRows.setFilterInOrder(query::matches, matches);
+        } else {
+            patientRows.setFilter(query::matches, matches);
         }
+        status.setText(matches.size() + " matching patients");
     }
 
     private void showPatientDetails(String pid) {
         Optional<Patient> opt = findPatientById(pid);
         if (!opt.isPresent()) return;
         Patient p = opt.get();
-        String message = String.format("Patient ID: %s\nName: %s\nDepartment: %s\nAssigned Doctor: %s\nOutstanding Bill: %.2f",
-                p.getPatientId(), p.getName(), p.getDepartment(), p.getAssignedDoctorName(), p.getOutstandingBill());
-        JOptionPane.showMessageDialog(frame, message, "Patient Details", JOptionPane.INFORMATION_MESSAGE);
+        VisitHistory.PatientState replayed = history.replay(pid);
+        String message = String.format("Patient ID: %s\nName: %s\nDepartment: %s\nAssigned Doctor: %s\nOutstanding Bill: %.2f\nBill Items: %d\nReports: %d%s",
+                p.getPatientId(), p.getName(), p.getDepartment(), service.doctorName(p.getAssignedDoctorId()), p.getOutstandingBill(), replayed.getBillItems(),
+                replayed.getReports(), replayed.getLastReport() == null ? "" : " (latest: " + replayed.getLastReport() + ")");
+        JPanel panel = new JPanel(new BorderLayout(8, 8));
+        JTextArea details = new JTextArea(message);
+        details.setEditable(false);
+        details.setOpaque(false);
+        panel.add(details, BorderLayout.NORTH);
+        panel.add(eventListView(history.forPatient(pid)), BorderLayout.CENTER);
+        JOptionPane.showMessageDialog(frame, panel, "Patient Details", JOptionPane.INFORMATION_MESSAGE);
     }
 
     private boolean validateIdNameDept(String id, String name, String dept) {
@@ -299,166 +622,374 @@ public class HospitalManagementGUI {
     }
 
     private Optional<Doctor> findDoctorById(String id) {
-        synchronized (doctors) {
-            return doctors.stream().filter(d -> d.getDoctorId().equals(id)).findFirst();
-        }
+        return service.findDoctor(id);
     }
 
     private Optional<Patient> findPatientById(String id) {
-        synchronized (patients) {
-            return patients.stream().filter(p -> p.getPatientId().equals(id)).findFirst();
+        try {
+            return service.findPatient(id);
+        } catch (UncheckedIOException e) {
+            LOGGER.log(Level.SEVERE, "Failed to read patient " + id + " from archive", e);
+            return Optional.empty();
+        }
+    }
+
+    // Runs an operation as the logged-in operator. An expired session hasn't run it yet, so the
+    // operator logs in again and it is retried; the only way out of that prompt is exiting.
+    private <T> T call(String opName, Supplier<T> op) {
+        while (true) {
+            try {
+                return session.call(opName, op);
+            } catch (SessionManager.SessionExpiredException e) {
+                renewSession(e.getMessage());
+            }
+        }
+    }
+
+    private void renewSession(String reason) {
+        JOptionPane.showMessageDialog(frame, reason + ".", "Session Expired", JOptionPane.WARNING_MESSAGE);
+        while (true) {
+            Optional<SessionManager.Session> renewed = new LoginDialog(sessions).showDialog();
+            if (renewed.isPresent()) {
+                frame.setTitle(frame.getTitle().replace(" - " + session.getUsername(), " - " + renewed.get().getUsername()));
+                session = renewed.get();
+                return;
+            }
+            int option = JOptionPane.showConfirmDialog(frame, "Log in again to keep working.\nExit without saving?",
+                    "Session Expired", JOptionPane.YES_NO_OPTION, JOptionPane.WARNING_MESSAGE);
+            if (option == JOptionPane.YES_OPTION) System.exit(0);
+        }
+    }
+
+    // Who did what, for compliance; the service audits the registry changes, this covers the rest
+    private void audit(String action, String subject, String detail) {
+        AuditLog.shared().publish(session.getUsername(), action, subject, detail);
+    }
+
+    // -------------------- Replication --------------------
+    private void replicate(JournalEntry.Op op, double amount, String... args) {
+        if (journal != null) journal.append(op, amount, args);
+    }
+
+    private void startShipping() {
+        if (shipPort <= 0) return;
+        journal = new JournalShipper(shipPort, this::replicationSnapshot);
+        try {
+            journal.start();
+        } catch (IOException e) {
+            journal = null;
+            LOGGER.log(Level.SEVERE, "Failed to start journal shipping on port " + shipPort, e);
+            JOptionPane.showMessageDialog(frame, "Failed to start replication on port " + shipPort + ": " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    // Current state expressed as (idempotent) journal entries, sent to a standby when it connects
+    private List<JournalEntry> replicationSnapshot() {
+        List<JournalEntry> entries = new ArrayList<>();
+        for (Doctor d : doctors.snapshot().values()) {
+            entries.add(new JournalEntry(0, JournalEntry.Op.ADD_DOCTOR, 0, d.getDoctorId(), d.getName(), d.getDepartment()));
+        }
+        for (Patient p : patients.snapshot().values()) {
+            entries.add(new JournalEntry(0, JournalEntry.Op.ADD_PATIENT, 0, p.getPatientId(), p.getName(), p.getDepartment()));
+            if (p.getAssignedDoctorId() != null) {
+                entries.add(new JournalEntry(0, JournalEntry.Op.SET_DOCTOR, 0, p.getPatientId(), p.getAssignedDoctorId()));
+            }
+            if (p.getOutstandingBill() != 0) {
+                entries.add(new JournalEntry(0, JournalEntry.Op.SET_BILL, p.getOutstandingBill(), p.getPatientId()));
+            }
+        }
+        for (AppointmentScheduler.Appointment a : scheduler.all()) {
+            entries.add(new JournalEntry(0, JournalEntry.Op.BOOK, 0, a.getDoctorId(), a.getPatientId(), Long.toString(a.getStart()), Long.toString(a.getEnd())));
         }
+        return entries;
+    }
+
+    private void startStandby() {
+        loadProgress = -1;
+        String[] hostPort = primaryAddress.split(":");
+        receiver = new JournalReceiver(hostPort[0], Integer.parseInt(hostPort[1]), this::applyReplicated,
+                () -> SwingUtilities.invokeLater(this::onPrimaryLost));
+        try {
+            receiver.start();
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Failed to start standby of " + primaryAddress, e);
+            JOptionPane.showMessageDialog(frame, "Failed to start replication from " + primaryAddress + ": " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        // The refreshers coalesce bursts of replicated changes; keep the counts in step with them
+        patientRows.setOnApplied(() -> {
+            if (standby) status.setText("Standby of " + primaryAddress + ": " + doctors.snapshot().size() + " doctors, " + patients.snapshot().size() + " patients");
+        });
+        status.setText("Standby: connecting to " + primaryAddress + "...");
+    }
+
+    // Runs on the receiver thread; the service is safe to mutate from any thread. The primary
+    // already audited these changes, so they go through the service's unaudited replicate methods,
+    // which still record the visit history a promoted standby will need.
+    private void applyReplicated(JournalEntry e) {
+        switch (e.getOp()) {
+            case ADD_DOCTOR:
+                if (service.replicateDoctor(new Doctor(e.arg(0), e.arg(1), e.arg(2)))) scheduler.registerDoctor(e.arg(0), e.arg(2));
+                doctorRows.changed(e.arg(0));
+                break;
+            case ADD_PATIENT:
+                service.replicatePatient(new Patient(e.arg(0), e.arg(1), e.arg(2)));
+                if (resyncSeen != null) resyncSeen.add(e.arg(0));
+                patientRows.changed(e.arg(0));
+                break;
+            case SET_DOCTOR:
+                service.replicateAssignment(e.arg(0), e.arg(1));
+                patientRows.changed(e.arg(0));
+                break;
+            case SET_BILL:
+                service.replicateBill(e.arg(0), e.getAmount());
+                patientRows.changed(e.arg(0));
+                break;
+            case DISCHARGE:
+                service.replicateDischarge(e.arg(0));
+                patientRows.changed(e.arg(0));
+                break;
+            case BOOK:
+                scheduler.book(e.arg(0), e.arg(1), Long.parseLong(e.arg(2)), Long.parseLong(e.arg(3)));
+                // An appointment is identified by doctor and start, as in CANCEL
+                if (resyncBooked != null) resyncBooked.add(e.arg(0) + "@" + e.arg(2));
+                break;
+            case CANCEL:
+                scheduler.cancel(e.arg(0), Long.parseLong(e.arg(1)));
+                break;
+            case REPORT:
+                service.replicateReport(e.arg(0), e.arg(1), e.arg(2));
+                break;
+            case SNAPSHOT_BEGIN:
+                resyncSeen = new HashSet<>();
+                resyncBooked = new HashSet<>();
+                break;
+            case SNAPSHOT_END:
+                for (Patient p : patients.snapshot().values()) {
+                    if (!resyncSeen.contains(p.getPatientId())) {
+                        service.replicateDischarge(p.getPatientId());
+                        patientRows.changed(p.getPatientId());
+                    }
+                }
+                for (AppointmentScheduler.Appointment a : scheduler.all()) {
+                    if (!resyncBooked.contains(a.getDoctorId() + "@" + a.getStart())) scheduler.cancel(a.getDoctorId(), a.getStart());
+                }
+                resyncSeen = null;
+                resyncBooked = null;
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void onPrimaryLost() {
+        if (!standby || receiver.isConnected()) return;
+        status.setText("Primary " + primaryAddress + " lost");
+        int option = JOptionPane.showConfirmDialog(frame, "No contact with primary " + primaryAddress + " for several seconds, still retrying.\nPromote this standby to primary?",
+                "Failover", JOptionPane.YES_NO_OPTION, JOptionPane.WARNING_MESSAGE);
+        if (option != JOptionPane.YES_OPTION) return;
+        // It may have come back while the question was open; two primaries would diverge
+        if (receiver.isConnected()) {
+            JOptionPane.showMessageDialog(frame, "Primary " + primaryAddress + " is reachable again; staying standby.", "Failover", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        receiver.stop();
+        standby = false;
+        for (JButton b : mutatingButtons) b.setEnabled(true);
+        frame.setTitle("Hospital Management System - " + session.getUsername() + " (promoted)");
+        startShipping();
+        status.setText("Promoted to primary");
+        LOGGER.warning("Standby promoted to primary after losing " + primaryAddress);
+    }
+
+    // Lookups go through the index even while loading, so a miss may just mean "not loaded yet"
+    private String notFoundMessage(String what) {
+        int progress = loadProgress;
+        return progress < 0 ? what + " not found." : what + " not found (data still loading: " + progress + "%).";
     }
 
     private void exitApplication() {
         int option = JOptionPane.showConfirmDialog(frame, "Do you want to save changes before exit?", "Exit", JOptionPane.YES_NO_CANCEL_OPTION);
         if (option == JOptionPane.CANCEL_OPTION || option == JOptionPane.CLOSED_OPTION) return;
         if (option == JOptionPane.YES_OPTION) {
-            saveDataInBackground(null);
+            // Exit only once the save has landed; a failed save leaves the window open
+            saveDataInBackground(() -> System.exit(0));
+            return;
         }
         System.exit(0);
     }
 
     // Persistence
-    private void saveDataInBackground(JLabel statusLabel) {
-        SwingWorker<Void, Void> worker = new SwingWorker<>() {
+    private void saveDataInBackground(Runnable onSaved) {
+        if (loadProgress >= 0) {
+            // Saving a partially loaded census would overwrite the records not read yet
+            JOptionPane.showMessageDialog(frame, "Data is still loading (" + loadProgress + "%). Please save once loading has finished.", "Save", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+        SwingWorker<String, Void> worker = new SwingWorker<>() {
+            // Returns an error message, or null if everything was saved
             @Override
-            protected Void doInBackground() {
-                try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(DATA_FILE))) {
-                    synchronized (doctors) {
-                        synchronized (patients) {
-                            DataBundle bundle = new DataBundle(doctors, patients);
-                            oos.writeObject(bundle);
-                            LOGGER.info("Data saved to " + DATA_FILE);
-                        }
-                    }
-                } catch (IOException e) {
+            protected String doInBackground() {
+                try {
+                    // Saved from immutable snapshots, so writers keep going while we serialize. Written to
+                    // a temp file and renamed, so a crash mid-save leaves the previous file intact.
+                    service.save(new File(DATA_FILE), out -> out.writeAll(APPOINTMENT_BLOCK, scheduler.all(), RECORDS_PER_BLOCK));
+                    LOGGER.info("Data saved to " + DATA_FILE + " (archive: " + service.archiveStats() + ")");
+                } catch (IOException | UncheckedIOException e) {
                     LOGGER.log(Level.SEVERE, "Failed to save data", e);
-                    SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(frame, "Failed to save data: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE));
+                    return "Failed to save data: " + e.getMessage();
                 }
                 return null;
             }
 
             @Override
             protected void done() {
-                if (statusLabel != null) statusLabel.setText("Saved at " + java.time.LocalTime.now().withNano(0));
+                String error;
+                try {
+                    error = get();
+                } catch (InterruptedException | ExecutionException e) {
+                    error = "Failed to save data: " + e.getMessage();
+                }
+                if (error != null) {
+                    JOptionPane.showMessageDialog(frame, error, "Error", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+                status.setText("Saved at " + java.time.LocalTime.now().withNano(0));
+                if (onSaved != null) onSaved.run();
             }
         };
         worker.execute();
     }
 
     private void loadDataInBackground() {
-        SwingWorker<Void, Void> worker = new SwingWorker<>() {
+        SwingWorker<Void, Integer> worker = new SwingWorker<>() {
+            private volatile String loadFailure;
+            // Set when the storage key is missing, unreadable or wrong: the file is fine, this process just can't read it
+            private volatile String keyError;
+            // Set when the damaged file couldn't be moved aside: a save would overwrite the only copy
+            private volatile String stuckDamage;
+
             @Override
             protected Void doInBackground() {
                 File f = new File(DATA_FILE);
                 if (!f.exists()) return null;
-                try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(f))) {
-                    Object obj = ois.readObject();
-                    if (obj instanceof DataBundle) {
-                        DataBundle bundle = (DataBundle) obj;
-                        synchronized (doctors) {
-                            synchronized (patients) {
-                                doctors.clear();
-                                doctors.addAll(bundle.getDoctors());
-                                patients.clear();
-                                patients.addAll(bundle.getPatients());
-                            }
-                        }
-                        LOGGER.info("Data loaded from " + DATA_FILE);
-                    }
+                try {
+                    // Records stream into the stores and the tables as the service decodes them
+                    service.load(f, this::apply);
+                    LOGGER.info("Data loaded from " + DATA_FILE);
                 } catch (Exception e) {
-                    LOGGER.log(Level.WARNING, "Failed to load data, starting fresh", e);
+                    if (BlockCodecs.isKeyError(e)) {
+                        // Nothing is wrong with the file, so leave it where it is and don't let a save replace it
+                        LOGGER.log(Level.SEVERE, "Cannot decrypt the data file", e);
+                        keyError = e.getMessage();
+                        return null;
+                    }
+                    LOGGER.log(Level.SEVERE, "Data file is damaged", e);
+                    // Keep the damaged file out of the way of the next save so it can still be recovered
+                    File aside = new File(DATA_FILE + ".damaged-" + System.currentTimeMillis());
+                    if (!f.renameTo(aside)) {
+                        stuckDamage = "The data file could not be read completely (" + e.getMessage() + ") and could not be moved aside.\n"
+                                + "It has been left untouched at " + DATA_FILE + ". Run\n    java RecoveryTool " + DATA_FILE
+                                + "\nto salvage every intact block, then start again.";
+                        return null;
+                    }
+                    loadFailure = "The data file could not be read completely (" + e.getMessage() + ").\nIt has been moved to " + aside.getName()
+                            + ".\nOnly the records before the damage were loaded. Run\n    java RecoveryTool " + aside.getName()
+                            + "\nto salvage every intact block.";
                 }
                 return null;
             }
 
+            // Hands newly added records to the table refreshers and books loaded appointments
+            @SuppressWarnings("unchecked")
+            private void apply(byte kind, List<?> records, int percentRead) {
+                loadProgress = percentRead;
+                if (kind == APPOINTMENT_BLOCK) {
+                    for (AppointmentScheduler.Appointment a : (List<AppointmentScheduler.Appointment>) records) {
+                        scheduler.book(a.getDoctorId(), a.getPatientId(), a.getStart(), a.getEnd());
+                    }
+                    return;
+                }
+                List<String> ids = new ArrayList<>();
+                if (kind == DOCTOR_BLOCK) {
+                    for (Doctor d : (List<Doctor>) records) {
+                        scheduler.registerDoctor(d.getDoctorId(), d.getDepartment());
+                        ids.add(d.getDoctorId());
+                    }
+                    doctorRows.changedAll(ids);
+                } else if (kind == PATIENT_BLOCK) {
+                    for (Patient p : (List<Patient>) records) ids.add(p.getPatientId());
+                    patientRows.changedAll(ids);
+                }
+                publish(loadProgress);
+            }
+
+            @Override
+            protected void process(List<Integer> progress) {
+                status.setText("Loading... " + progress.get(progress.size() - 1) + "%");
+            }
+
             @Override
             protected void done() {
-                refreshDoctorTable();
-                refreshPatientTable();
-                frame.setVisible(true);
+                if (keyError != null) {
+                    JOptionPane.showMessageDialog(frame, DATA_FILE + " could not be decrypted: " + keyError
+                                    + ".\nThe file has been left untouched. Start with -Dhms.storage.keyFile=<key file> set to the key it was saved with.",
+                            "Encrypted Data", JOptionPane.ERROR_MESSAGE);
+                    System.exit(1);
+                }
+                if (stuckDamage != null) {
+                    // Exit before anything can be saved over the damaged file
+                    JOptionPane.showMessageDialog(frame, stuckDamage, "Data File Damaged", JOptionPane.ERROR_MESSAGE);
+                    System.exit(1);
+                }
+                loadProgress = -1;
+                status.setText("Loaded " + doctors.snapshot().size() + " doctors, " + patients.snapshot().size() + " patients");
+                if (loadFailure != null) JOptionPane.showMessageDialog(frame, loadFailure, "Data File Damaged", JOptionPane.ERROR_MESSAGE);
+                // Only ship once fully loaded, so a standby's snapshot covers the whole census
+                startShipping();
             }
         };
         worker.execute();
     }
 
+    // Usage: java HospitalManagementGUI [--primary <port> | --standby <host>:<port>]
+    // Run a standby from its own working directory so it keeps separate data files.
     public static void main(String[] args) {
+        int shipPort = -1;
+        String primaryAddress = null;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if ("--primary".equals(args[i])) shipPort = Integer.parseInt(args[i + 1]);
+            else if ("--standby".equals(args[i])) primaryAddress = args[i + 1];
+        }
+        int port = shipPort;
+        String primary = primaryAddress;
         // Simple login screen before showing the main UI
         SwingUtilities.invokeLater(() -> {
-            LoginDialog login = new LoginDialog();
-            boolean ok = login.showDialog();
-            if (!ok) {
+            SessionManager sessions;
+            try {
+                sessions = new SessionManager(new UserStore(new File(UserStore.DEFAULT_FILE)), SESSION_IDLE_TIMEOUT_MS);
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Failed to open user store", e);
+                JOptionPane.showMessageDialog(null, "Failed to open user store: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                System.exit(1);
+                return;
+            }
+            LoginDialog login = new LoginDialog(sessions);
+            Optional<SessionManager.Session> session = login.showDialog();
+            if (!session.isPresent()) {
                 System.exit(0);
             }
-            new HospitalManagementGUI();
+            new HospitalManagementGUI(sessions, session.get(), port, primary);
         });
     }
 
-    // -------------------- Inner classes (Model) --------------------
-    private static class Doctor implements Serializable {
-        private final String doctorId;
-        private final String name;
-        private final String department;
-
-        public Doctor(String doctorId, String name, String department) {
-            this.doctorId = doctorId;
-            this.name = name;
-            this.department = department;
-        }
-
-        public String getDoctorId() { return doctorId; }
-        public String getName() { return name; }
-        public String getDepartment() { return department; }
-
-        @Override
-        public String toString() { return name + " (" + doctorId + ")"; }
-    }
-
-    private static class Patient implements Serializable {
-        private final String patientId;
-        private final String name;
-        private final String department;
-        private Doctor assignedDoctor; // transient linking to doctor object in memory
-        private double outstandingBill = 0.0;
-
-        public Patient(String patientId, String name, String department) {
-            this.patientId = patientId;
-            this.name = name;
-            this.department = department;
-        }
-
-        public String getPatientId() { return patientId; }
-        public String getName() { return name; }
-        public String getDepartment() { return department; }
-        public double getOutstandingBill() { return outstandingBill; }
-
-        public void assignDoctor(Doctor d) { this.assignedDoctor = d; }
-        public void generateBill(double amount) { this.outstandingBill += amount; }
-        public String getAssignedDoctorName() { return assignedDoctor == null ? "-" : assignedDoctor.getName(); }
-    }
-
-    // Simple bundle for serialization
-    private static class DataBundle implements Serializable {
-        private final List<Doctor> doctors;
-        private final List<Patient> patients;
-
-        public DataBundle(List<Doctor> doctors, List<Patient> patients) {
-            // Create copies to avoid concurrency issues
-            this.doctors = new ArrayList<>(doctors);
-            this.patients = new ArrayList<>(patients);
-        }
-
-        public List<Doctor> getDoctors() { return doctors; }
-        public List<Patient> getPatients() { return patients; }
-    }
-
+    // -------------------- Inner classes --------------------
     // Lightweight login dialog
     private static class LoginDialog {
         private final JDialog dialog;
-        private boolean success = false;
+        private SessionManager.Session session;
 
-        public LoginDialog() {
+        public LoginDialog(SessionManager sessions) {
             dialog = new JDialog((Frame) null, "Login", true);
             dialog.setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
             JPanel p = new JPanel(new BorderLayout(8, 8));
@@ -482,9 +1013,11 @@ public class HospitalManagementGUI {
 
             loginBtn.addActionListener(e -> {
                 String u = userField.getText().trim();
-                String pw = new String(passField.getPassword());
-                if ("admin".equals(u) && "12345".equals(pw)) {
-                    success = true;
+                char[] pw = passField.getPassword();
+                Optional<SessionManager.Session> s = sessions.login(u, pw);
+                Arrays.fill(pw, '\0');
+                if (s.isPresent()) {
+                    session = s.get();
                     dialog.dispose();
                 } else {
                     JOptionPane.showMessageDialog(dialog, "Invalid credentials", "Login Failed", JOptionPane.ERROR_MESSAGE);
@@ -497,9 +1030,9 @@ public class HospitalManagementGUI {
             dialog.setLocationRelativeTo(null);
         }
 
-        public boolean showDialog() {
+        public Optional<SessionManager.Session> showDialog() {
             dialog.setVisible(true);
-            return success;
+            return Optional.ofNullable(session);
         }
     }
 }
@@ -0,0 +1,414 @@
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+
+/**
+ * The hospital registry shared by every front end: the console app, the GUI and the shard
+ * nodes all keep their doctors and patients here, so indexing, persistence and concurrency
+ * work done on it applies to all of them.
+ *
+ * Admitted patients and doctors live in copy-on-write {@link VersionedStore}s; discharged
+ * patients move to an optional disk-backed archive. Mutations are audited (as the user of
+ * the current session) when an {@link AuditLog} is supplied, and recorded in the
+ * {@link VisitHistory}, which is saved with the census. Mutating methods are safe to call
+ * from any thread.
+ */
+public class HospitalService {
+    public static final String DEFAULT_DATA_FILE = "hospital_data.ser";
+    public static final String DEFAULT_ARCHIVE_FILE = "patient_archive.dat";
+    public static final int ARCHIVE_CACHE_SIZE = Integer.getInteger("hms.archive.cacheSize", 256);
+    public static final BoundedCache.Policy ARCHIVE_POLICY = BoundedCache.Policy.valueOf(System.getProperty("hms.archive.policy", "TINY_LFU"));
+    public static final byte DOCTOR_BLOCK = 'D';
+    public static final byte PATIENT_BLOCK = 'P';
+    public static final byte EVENT_BLOCK = 'E';
+    public static final int RECORDS_PER_BLOCK = 1024;
+    // Decoded blocks waiting to be applied in file order while loading
+    private static final int BLOCKS_IN_FLIGHT = 4;
+
+    private final VersionedStore<Doctor> doctors = new VersionedStore<>(Doctor::getDoctorId);
+    private final VersionedStore<Patient> patients = new VersionedStore<>(Patient::getPatientId);
+    // Secondary indexes for PatientQuery, maintained by the store on every write
+    private final VersionedStore.Index<Patient> patientsByDepartment = patients.addIndex(p -> PatientQuery.departmentKey(p.getDepartment()));
+    private final VersionedStore.Index<Patient> patientsByDoctor = patients.addIndex(Patient::getAssignedDoctorId);
+    // Admissions, assignments, bill items and discharges, indexed by time
+    private final VisitHistory history = new VisitHistory();
+    private final DiskBackedStore<Patient> archive;
+    private final AuditLog audit;
+    // Blocks this service doesn't own (e.g. the GUI's appointments), carried through load and save untouched
+    private volatile List<BlockFile.Block> otherBlocks = new ArrayList<>();
+
+    /**
+     * @param archive where discharged patients go, or null to drop them
+     * @param audit   where mutations are recorded, or null for none
+     */
+    public HospitalService(DiskBackedStore<Patient> archive, AuditLog audit) {
+        this.archive = archive;
+        this.audit = audit;
+    }
+
+    /** Opens the default archive file with the configured cache size and policy. */
+    public static DiskBackedStore<Patient> openDefaultArchive() throws IOException {
+        return new DiskBackedStore<>(new File(DEFAULT_ARCHIVE_FILE), ARCHIVE_CACHE_SIZE, ARCHIVE_POLICY);
+    }
+
+    public VersionedStore<Doctor> doctors() {
+        return doctors;
+    }
+
+    public VersionedStore<Patient> patients() {
+        return patients;
+    }
+
+    public VisitHistory history() {
+        return history;
+    }
+
+    public int archivedCount() {
+        return archive == null ? 0 : archive.size();
+    }
+
+    public String archiveStats() {
+        return archive == null ? "no archive" : archive.stats();
+    }
+
+    // -------------------- Queries --------------------
+    public Optional<Doctor> findDoctor(String id) {
+        return doctors.get(id);
+    }
+
+    /** Admitted patients are served from memory; only a miss falls through to the archive. */
+    public Optional<Patient> findPatient(String id) {
+        Optional<Patient> active = patients.get(id);
+        return active.isPresent() || archive == null ? active : archive.get(id);
+    }
+
+    /** Name of the doctor with this ID, "-" for none, or the ID itself if the doctor is unknown. */
+    public String doctorName(String doctorId) {
+        if (doctorId == null) return "-";
+        return doctors.get(doctorId).map(Doctor::getName).orElse(doctorId);
+    }
+
+    public List<Patient> patientsInDepartment(String dept) {
+        return query().department(dept).stream().collect(Collectors.toList());
+    }
+
+    /** Starts a query over the admitted patients. */
+    public PatientQuery query() {
+        return new PatientQuery(patients, patientsByDepartment, patientsByDoctor);
+    }
+
+    // -------------------- Mutations --------------------
+    /** Returns false if a doctor with this ID already exists. */
+    public boolean addDoctor(Doctor d) {
+        if (!doctors.add(d)) return false;
+        audit("ADD_DOCTOR", d.getDoctorId(), d.getDepartment());
+        return true;
+    }
+
+    /** Returns false if a patient with this ID is admitted or archived. */
+    public boolean addPatient(Patient p) {
+        if ((archive != null && archive.contains(p.getPatientId())) || !patients.add(p)) return false;
+        audit("ADD_PATIENT", p.getPatientId(), p.getDepartment());
+        history.record(VisitEvent.Type.ADMISSION, p.getPatientId(), p.getDepartment(), null, 0, null);
+        return true;
+    }
+
+    /** Returns the updated patient, or empty if either ID is unknown. */
+    public Optional<Patient> assignDoctor(String patientId, String doctorId) {
+        Optional<Doctor> doctor = doctors.get(doctorId);
+        if (!doctor.isPresent()) return Optional.empty();
+        Optional<Patient> updated = update(patientId, p -> p.withAssignedDoctor(doctorId));
+        if (updated.isPresent()) {
+            audit("ASSIGN_DOCTOR", patientId, doctorId);
+            history.record(VisitEvent.Type.DOCTOR_ASSIGNED, patientId, doctor.get().getDepartment(), doctorId, 0, null);
+        }
+        return updated;
+    }
+
+    /** Adds to the patient's outstanding bill; returns the updated patient, or empty if unknown. */
+    public Optional<Patient> bill(String patientId, double amount) {
+        Optional<Patient> updated = update(patientId, p -> p.withBill(amount));
+        if (updated.isPresent()) {
+            audit("BILL", patientId, Double.toString(amount));
+            history.record(VisitEvent.Type.BILL_ITEM, patientId, updated.get().getDepartment(), null, amount, null);
+        }
+        return updated;
+    }
+
+    /** Writes a report for an admitted or archived patient; returns it, or empty if the patient is unknown. */
+    public Optional<Report> writeReport(String patientId, String diagnosis, String prescription) {
+        Optional<Report> report = recordReport(patientId, diagnosis, prescription);
+        if (report.isPresent()) audit("REPORT", patientId, diagnosis);
+        return report;
+    }
+
+    /** Moves an admitted patient to the archive; returns them, or empty if not admitted. */
+    public Optional<Patient> discharge(String patientId) {
+        Optional<Patient> removed = moveToArchive(patientId);
+        if (removed.isPresent()) {
+            audit("DISCHARGE", patientId, null);
+            history.record(VisitEvent.Type.DISCHARGE, patientId, removed.get().getDepartment(), null, 0, null);
+        }
+        return removed;
+    }
+
+    /** Unaudited discharge, for replaying changes made elsewhere. */
+    public Optional<Patient> moveToArchive(String patientId) {
+        // Archive before removing, so a concurrent save never sees the patient in neither place;
+        // the second put keeps whatever update landed in between
+        if (archive != null) patients.get(patientId).ifPresent(p -> archive.put(patientId, p));
+        Optional<Patient> removed = patients.remove(patientId);
+        if (archive != null) removed.ifPresent(p -> archive.put(patientId, p));
+        return removed;
+    }
+
+    /** Unaudited update of an admitted or archived patient, for replaying changes made elsewhere. */
+    public Optional<Patient> update(String patientId, UnaryOperator<Patient> fn) {
+        Optional<Patient> updated = patients.update(patientId, fn);
+        return updated.isPresent() || archive == null ? updated : archive.update(patientId, fn);
+    }
+
+    /**
+     * Takes over a patient moved here from another node, with their history, rather than
+     * admitting them afresh. A patient already here (a repeated move) is overwritten and keeps
+     * the history they have.
+     */
+    public void migrateIn(Patient p, List<VisitEvent> events) {
+        if (patients.add(p)) {
+            history.appendAll(events);
+        } else {
+            update(p.getPatientId(), cur -> p);
+        }
+        audit("MIGRATE_IN", p.getPatientId(), p.getDepartment());
+    }
+
+    /** Drops patients who have been moved to another node, history included; returns how many were here. */
+    public int migrateOut(Collection<String> patientIds) {
+        List<Patient> removed = patients.removeAll(patientIds);
+        for (Patient p : removed) audit("MIGRATE_OUT", p.getPatientId(), null);
+        history.removePatients(new HashSet<>(patientIds));
+        return removed.size();
+    }
+
+    // -------------------- Replicated changes --------------------
+    // Changes another node (a replication primary) already made and audited, carrying resulting
+    // values. Not audited again and safe to apply twice; each records the history event the
+    // change implies only when it actually changes something here.
+
+    public boolean replicateDoctor(Doctor d) {
+        return doctors.add(d);
+    }
+
+    public boolean replicatePatient(Patient p) {
+        if (!patients.add(p)) return false;
+        history.record(VisitEvent.Type.ADMISSION, p.getPatientId(), p.getDepartment(), null, 0, null);
+        return true;
+    }
+
+    public Optional<Patient> replicateAssignment(String patientId, String doctorId) {
+        Optional<Patient> before = findPatient(patientId);
+        if (!before.isPresent() || doctorId.equals(before.get().getAssignedDoctorId())) return before;
+        Optional<Patient> updated = update(patientId, p -> p.withAssignedDoctor(doctorId));
+        String department = doctors.get(doctorId).map(Doctor::getDepartment).orElse(null);
+        if (updated.isPresent()) history.record(VisitEvent.Type.DOCTOR_ASSIGNED, patientId, department, doctorId, 0, null);
+        return updated;
+    }
+
+    /** Sets the outstanding total; a rise is recorded as a bill item of the difference. */
+    public Optional<Patient> replicateBill(String patientId, double outstanding) {
+        Optional<Patient> before = findPatient(patientId);
+        if (!before.isPresent()) return before;
+        double billed = outstanding - before.get().getOutstandingBill();
+        Optional<Patient> updated = update(patientId, p -> p.withOutstandingBill(outstanding));
+        if (updated.isPresent() && billed > 0) history.record(VisitEvent.Type.BILL_ITEM, patientId, before.get().getDepartment(), null, billed, null);
+        return updated;
+    }
+
+    public Optional<Patient> replicateDischarge(String patientId) {
+        Optional<Patient> removed = moveToArchive(patientId);
+        removed.ifPresent(p -> history.record(VisitEvent.Type.DISCHARGE, patientId, p.getDepartment(), null, 0, null));
+        return removed;
+    }
+
+    /** Unlike the others, not idempotent: reports are only ever shipped once, in the live stream. */
+    public Optional<Report> replicateReport(String patientId, String diagnosis, String prescription) {
+        return recordReport(patientId, diagnosis, prescription);
+    }
+
+    private Optional<Report> recordReport(String patientId, String diagnosis, String prescription) {
+        Optional<Patient> patient = findPatient(patientId);
+        if (!patient.isPresent()) return Optional.empty();
+        Report report = new Report(patient.get(), diagnosis, prescription);
+        history.record(VisitEvent.Type.REPORT, patientId, patient.get().getDepartment(), patient.get().getAssignedDoctorId(), 0, report.getSummary());
+        return Optional.of(report);
+    }
+
+    private void audit(String action, String subject, String detail) {
+        if (audit != null) audit.publish(SessionManager.currentUser(), action, subject, detail);
+    }
+
+    // -------------------- Persistence --------------------
+    /** Receives records as {@link #load(File, Chunks)} reads them, in file order, on the loading thread. */
+    public interface Chunks {
+        /**
+         * @param kind        the block kind, e.g. {@link #PATIENT_BLOCK}
+         * @param records     for doctors and patients only those actually added; otherwise the whole block
+         * @param percentRead how much of the file has been read, 0 to 99
+         */
+        void loaded(byte kind, List<?> records, int percentRead);
+    }
+
+    /** Loads without listening for chunks; blocks of other kinds are written back by {@link #save(File)}. */
+    public void load(File file) throws IOException, ClassNotFoundException {
+        load(file, null);
+    }
+
+    /**
+     * Reads a block file or a legacy single-object file. Blocks are read in order and decoded in
+     * parallel, and each one is handed to {@code chunks} as soon as its records are in, so a
+     * front end can show the census while the rest streams in. Doctors and patients already
+     * present are kept; history events join the history once the whole file has been read, so
+     * events recorded meanwhile cost one rebuild rather than one per block. Blocks of kinds this
+     * service doesn't own go to {@code chunks}, whose
+     * owner writes them back through {@link #save(File, BlockFile.Content)}; without
+     * {@code chunks} they are held as they are and written back by {@link #save(File)}.
+     */
+    public void load(File file, Chunks chunks) throws IOException, ClassNotFoundException {
+        if (!file.exists()) return;
+        List<VisitEvent> events = new ArrayList<>();
+        if (!BlockFile.isBlockFile(file)) {
+            try (ObjectInputStream in = new LegacyFormat.Input(new FileInputStream(file))) {
+                LegacyFormat.Bundle bundle = (LegacyFormat.Bundle) in.readObject();
+                apply(new Chunk(DOCTOR_BLOCK, bundle.getDoctors(), 99), chunks, events);
+                apply(new Chunk(PATIENT_BLOCK, bundle.getPatients(), 99), chunks, events);
+            }
+            return;
+        }
+        List<BlockFile.Block> others = new ArrayList<>();
+        long total = Math.max(1, file.length());
+        ExecutorService decoders = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+        ArrayDeque<Future<Chunk>> inFlight = new ArrayDeque<>();
+        try (BlockFile.Reader in = new BlockFile.Reader(new FileInputStream(file))) {
+            BlockFile.Block block;
+            while ((block = next(in, inFlight, chunks, events)) != null) {
+                BlockFile.Block b = block;
+                if (chunks == null && !owns(b.getKind())) {
+                    others.add(b);
+                    continue;
+                }
+                int percent = (int) (in.getBytesRead() * 99 / total);
+                inFlight.add(decoders.submit(() -> new Chunk(b.getKind(), b.decode(), percent)));
+                // Bound memory: never hold more than a few decoded blocks
+                while (!inFlight.isEmpty() && (inFlight.peek().isDone() || inFlight.size() > BLOCKS_IN_FLIGHT)) {
+                    apply(await(inFlight.poll()), chunks, events);
+                }
+            }
+            while (!inFlight.isEmpty()) apply(await(inFlight.poll()), chunks, events);
+        } finally {
+            decoders.shutdownNow();
+            // Also after a failure, like the records read before it
+            if (!events.isEmpty()) history.appendAll(events);
+        }
+        otherBlocks = others;
+    }
+
+    /** Flushes the archive, then saves the census, the history and any blocks carried over from {@link #load(File)}. */
+    public void save(File file) throws IOException {
+        List<BlockFile.Block> others = otherBlocks;
+        save(file, out -> {
+            for (BlockFile.Block b : others) out.writeBlock(b);
+        });
+    }
+
+    /**
+     * Flushes the archive, then atomically saves doctors, patients and the visit history followed
+     * by whatever {@code extra} writes. A discharged patient is only left out of the data file
+     * once the archive holds them, so a failed or interrupted save can't lose anyone. Works from
+     * snapshots, so mutations carry on meanwhile.
+     */
+    public void save(File file, BlockFile.Content extra) throws IOException {
+        List<Doctor> ds = doctors.snapshot().values();
+        List<Patient> ps = patients.snapshot().values();
+        List<List<VisitEvent>> events = history.segments();
+        // Taken after the snapshots: anyone discharged before them is then flushed below
+        if (archive != null) archive.flush();
+        BlockFile.writeAtomically(file, out -> {
+            out.writeAll(DOCTOR_BLOCK, ds, RECORDS_PER_BLOCK);
+            out.writeAll(PATIENT_BLOCK, ps, RECORDS_PER_BLOCK);
+            // One block per history segment, so segments load back independently
+            for (List<VisitEvent> segment : events) out.writeBlock(EVENT_BLOCK, segment);
+            extra.writeTo(out);
+        });
+    }
+
+    // Reads the next block. If the reader hits damage, the blocks before it that are still being
+    // decoded are applied first, so a damaged file keeps everything up to the damage.
+    private BlockFile.Block next(BlockFile.Reader in, ArrayDeque<Future<Chunk>> inFlight, Chunks chunks, List<VisitEvent> events)
+            throws IOException, ClassNotFoundException {
+        try {
+            return in.next();
+        } catch (IOException | RuntimeException e) {
+            try {
+                while (!inFlight.isEmpty()) apply(await(inFlight.poll()), chunks, events);
+            } catch (IOException | ClassNotFoundException | RuntimeException decodeFailure) {
+                e.addSuppressed(decodeFailure);
+            }
+            throw e;
+        }
+    }
+
+    private static boolean owns(byte kind) {
+        return kind == DOCTOR_BLOCK || kind == PATIENT_BLOCK || kind == EVENT_BLOCK;
+    }
+
+    // Adds a decoded block to the stores, skipping IDs entered meanwhile, and passes on what was added;
+    // history events are collected for the caller to append in one go
+    @SuppressWarnings("unchecked")
+    private void apply(Chunk chunk, Chunks chunks, List<VisitEvent> events) {
+        List<?> records = chunk.records;
+        if (chunk.kind == DOCTOR_BLOCK) records = doctors.addAll((List<Doctor>) records);
+        else if (chunk.kind == PATIENT_BLOCK) records = patients.addAll((List<Patient>) records);
+        else if (chunk.kind == EVENT_BLOCK) events.addAll((List<VisitEvent>) records);
+        if (chunks != null) chunks.loaded(chunk.kind, records, chunk.percentRead);
+    }
+
+    // Rethrows what the decoder threw, rather than the ExecutionException around it
+    private static Chunk await(Future<Chunk> decoded) throws IOException, ClassNotFoundException {
+        try {
+            return decoded.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while loading");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof ClassNotFoundException) throw (ClassNotFoundException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    // One decoded block on its way into the stores
+    private static final class Chunk {
+        private final byte kind;
+        private final List<?> records;
+        private final int percentRead;
+
+        Chunk(byte kind, List<?> records, int percentRead) {
+            this.kind = kind;
+            this.records = records;
+            this.percentRead = percentRead;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Optional;
+
+/**
+ * Checks that loading a damaged data file keeps every record before the damage:
+ * {@code java HospitalServiceLoadTest}. Exits non-zero on failure.
+ */
+public class HospitalServiceLoadTest {
+    private static final int PATIENTS = 5000;
+
+    public static void main(String[] args) throws Exception {
+        File dir = Files.createTempDirectory("load-test").toFile();
+        File file = new File(dir, "hospital_data.ser");
+        try {
+            HospitalService saved = new HospitalService(null, null);
+            for (int i = 0; i < PATIENTS; i++) saved.addPatient(new Patient("P" + i, "Name " + i, "Cardiology"));
+            saved.save(file);
+
+            // Damage a third of the way in, and count the patients in the blocks that end before it
+            long damageAt = file.length() / 3;
+            int intact = 0;
+            try (BlockFile.Reader in = new BlockFile.Reader(new FileInputStream(file))) {
+                BlockFile.Block b;
+                while ((b = in.next()) != null && in.getBytesRead() <= damageAt) {
+                    if (b.getKind() == HospitalService.PATIENT_BLOCK) intact += b.decode().size();
+                }
+            }
+            check(intact > 0, "test file has no patient block before the damage");
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                for (long pos = damageAt; pos < damageAt + 16; pos++) {
+                    raf.seek(pos);
+                    int v = raf.read();
+                    raf.seek(pos);
+                    raf.write(v ^ 0xFF);
+                }
+            }
+
+            HospitalService loaded = new HospitalService(null, null);
+            boolean failed = false;
+            try {
+                loaded.load(file, (kind, records, percent) -> { });
+            } catch (IOException | ClassNotFoundException e) {
+                failed = true;
+            }
+            check(failed, "load of a damaged file did not report the damage");
+            int kept = loaded.patients().snapshot().size();
+            check(kept >= intact, "kept " + kept + " patients, but " + intact + " were in intact blocks before the damage");
+            for (int i = 0; i < intact; i++) {
+                Optional<Patient> p = loaded.findPatient("P" + i);
+                check(p.isPresent() && p.get().getName().equals("Name " + i), "patient P" + i + " before the damage was lost");
+            }
+            System.out.println("OK: kept " + kept + " of " + PATIENTS + " patients, " + intact + " of them before the damage");
+        } finally {
+            File[] files = dir.listFiles();
+            if (files != null) for (File f : files) f.delete();
+            dir.delete();
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            System.err.println("FAILED: " + message);
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * One model mutation as shipped to standby nodes.
+ *
+ * Entries carry the resulting value rather than a delta (SET_BILL holds the new outstanding
+ * total, not the amount just billed), so applying one twice is harmless. That lets a standby
+ * subscribe first and take the snapshot second without ever double counting. REPORT is the
+ * exception: reports are not part of the snapshot, so each one is only ever sent once.
+ *
+ * SNAPSHOT_BEGIN and SNAPSHOT_END bracket the snapshot, so a standby that reconnects can drop
+ * whatever the primary no longer has, discharged patients and cancelled appointments alike. RESYNC tells a standby it is about to be disconnected for
+ * falling behind and should reconnect for a fresh snapshot rather than treat it as failover.
+ */
+public final class JournalEntry implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public enum Op { HEARTBEAT, ADD_DOCTOR, ADD_PATIENT, SET_DOCTOR, SET_BILL, DISCHARGE, BOOK, CANCEL, REPORT, SNAPSHOT_BEGIN, SNAPSHOT_END, RESYNC }
+
+    private final long seq;
+    private final Op op;
+    private final String[] args;
+    private final double amount;
+
+    public JournalEntry(long seq, Op op, double amount, String... args) {
+        this.seq = seq;
+        this.op = op;
+        this.amount = amount;
+        this.args = args;
+    }
+
+    public long getSeq() { return seq; }
+    public Op getOp() { return op; }
+    public double getAmount() { return amount; }
+    public String arg(int i) { return args[i]; }
+
+    @Override
+    public String toString() {
+        return "#" + seq + " " + op + " " + Arrays.toString(args) + (op == Op.SET_BILL ? " " + amount : "");
+    }
+}
@@ -0,0 +1,121 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Standby side of replication: connects to a {@link JournalShipper}, applies every entry it
+ * receives and keeps reconnecting, with backoff, whenever the connection drops.
+ *
+ * A dropped connection alone is not failover: the primary may have restarted, or asked this
+ * standby to resync. {@code onPrimaryLost} runs only once the primary has been heard from at
+ * least once and then nothing, including reconnect attempts, has succeeded for
+ * {@link #PRIMARY_TIMEOUT_MS}. It runs at most once per outage. Authenticates with the secret in
+ * {@code hms.replication.secretFile}.
+ */
+public class JournalReceiver {
+    private static final Logger LOGGER = Logger.getLogger(JournalReceiver.class.getName());
+    private static final int PRIMARY_TIMEOUT_MS = 5000;
+    private static final long MIN_BACKOFF_MS = 250;
+    private static final long MAX_BACKOFF_MS = 2000;
+
+    private final String host;
+    private final int port;
+    private final Consumer<JournalEntry> applier;
+    private final Runnable onPrimaryLost;
+    private byte[] secret;
+    private volatile long lastAppliedSeq;
+    private volatile boolean running;
+    private volatile boolean connected;
+    private volatile Socket socket;
+
+    public JournalReceiver(String host, int port, Consumer<JournalEntry> applier, Runnable onPrimaryLost) {
+        this.host = host;
+        this.port = port;
+        this.applier = applier;
+        this.onPrimaryLost = onPrimaryLost;
+    }
+
+    public void start() throws IOException {
+        secret = RemoteAccess.secret("hms.replication.secretFile");
+        running = true;
+        Thread t = new Thread(this::receive, "journal-receiver");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /** Stops reconnecting, e.g. once this standby has been promoted. */
+    public void stop() {
+        running = false;
+        Socket s = socket;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException ignored) {
+                // the receiver thread sees the close and exits
+            }
+        }
+    }
+
+    /** True while a session with the primary is open. */
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public long getLastAppliedSeq() {
+        return lastAppliedSeq;
+    }
+
+    private void receive() {
+        long backoff = MIN_BACKOFF_MS;
+        long lastContact = 0; // 0 until the primary has been reached once
+        boolean reported = false;
+        while (running) {
+            boolean reached = false;
+            try (Socket s = new Socket()) {
+                socket = s;
+                s.connect(new InetSocketAddress(host, port), PRIMARY_TIMEOUT_MS);
+                s.setSoTimeout(PRIMARY_TIMEOUT_MS);
+                RemoteAccess.handshake(s, secret, false);
+                ObjectInputStream in = RemoteAccess.objectInput(new BufferedInputStream(s.getInputStream()), JournalEntry.class, JournalEntry.Op.class);
+                reached = true;
+                connected = true;
+                reported = false;
+                backoff = MIN_BACKOFF_MS;
+                lastContact = System.currentTimeMillis();
+                LOGGER.info("Connected to primary " + host + ":" + port);
+                while (running) {
+                    JournalEntry e = (JournalEntry) in.readObject();
+                    lastContact = System.currentTimeMillis();
+                    if (e.getOp() == JournalEntry.Op.RESYNC) {
+                        LOGGER.warning("Primary asked for a resync at seq " + lastAppliedSeq + ", reconnecting");
+                        break;
+                    }
+                    if (e.getOp() != JournalEntry.Op.HEARTBEAT) applier.accept(e);
+                    lastAppliedSeq = e.getSeq();
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                if (running) LOGGER.log(Level.WARNING, "Connection to primary " + host + ":" + port + " failed at seq " + lastAppliedSeq, e);
+            } finally {
+                connected = false;
+                socket = null;
+            }
+            if (!running) break;
+            if (!reached && !reported && lastContact != 0 && System.currentTimeMillis() - lastContact >= PRIMARY_TIMEOUT_MS) {
+                reported = true;
+                onPrimaryLost.run();
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            backoff = Math.min(MAX_BACKOFF_MS, backoff * 2);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Primary side of replication: numbers every mutation and streams it to connected standbys.
+ *
+ * A new standby is subscribed first and then sent a snapshot of the current state as
+ * entries, followed by everything appended since it subscribed. Entries are idempotent, so
+ * the overlap between snapshot and live stream is harmless. Each standby has its own bounded
+ * queue and sender thread; one that falls too far behind is sent RESYNC and disconnected
+ * rather than slowing the primary down, and reconnects for a fresh snapshot.
+ *
+ * The port listens on loopback unless {@code hms.replication.bindAddress} names another
+ * address, and a standby must prove it holds the secret in {@code hms.replication.secretFile}
+ * before it is sent anything (see {@link RemoteAccess}).
+ */
+public class JournalShipper {
+    private static final Logger LOGGER = Logger.getLogger(JournalShipper.class.getName());
+    private static final int QUEUE_CAPACITY = 100_000;
+    private static final long HEARTBEAT_MS = 1000;
+    private static final int RESET_EVERY = 1024;
+
+    private final int port;
+    private final Supplier<List<JournalEntry>> snapshot;
+    private byte[] secret;
+    private final AtomicLong seq = new AtomicLong();
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+
+    public JournalShipper(int port, Supplier<List<JournalEntry>> snapshot) {
+        this.port = port;
+        this.snapshot = snapshot;
+    }
+
+    public void start() throws IOException {
+        secret = RemoteAccess.secret("hms.replication.secretFile");
+        InetAddress address = RemoteAccess.bindAddress("hms.replication.bindAddress");
+        ServerSocket server = new ServerSocket(port, 50, address);
+        Thread acceptor = new Thread(() -> {
+            while (!server.isClosed()) {
+                try {
+                    Socket socket = server.accept();
+                    socket.setTcpNoDelay(true);
+                    Subscriber s = new Subscriber(socket);
+                    Thread sender = new Thread(s, "journal-sender-" + socket.getRemoteSocketAddress());
+                    sender.setDaemon(true);
+                    sender.start();
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to accept standby", e);
+                }
+            }
+        }, "journal-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        LOGGER.info("Shipping journal on " + address.getHostAddress() + ":" + port);
+    }
+
+    /**
+     * Records a mutation that has just been applied locally. Never blocks. Callers must append
+     * in the order the mutations were applied (the GUI applies everything on the EDT).
+     */
+    public void append(JournalEntry.Op op, double amount, String... args) {
+        JournalEntry e = new JournalEntry(seq.incrementAndGet(), op, amount, args);
+        for (Subscriber s : subscribers) s.offer(e);
+    }
+
+    public int standbyCount() {
+        return subscribers.size();
+    }
+
+    private final class Subscriber implements Runnable {
+        private final Socket socket;
+        private final BlockingQueue<JournalEntry> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        private volatile boolean overflowed;
+
+        Subscriber(Socket socket) {
+            this.socket = socket;
+        }
+
+        void offer(JournalEntry e) {
+            if (!queue.offer(e)) overflowed = true;
+        }
+
+        @Override
+        public void run() {
+            try {
+                RemoteAccess.handshake(socket, secret, true);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Rejected standby " + socket.getRemoteSocketAddress(), e);
+                close();
+                return;
+            }
+            subscribers.add(this);
+            LOGGER.info("Standby connected from " + socket.getRemoteSocketAddress());
+            try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+                int sent = 0;
+                out.writeObject(new JournalEntry(seq.get(), JournalEntry.Op.SNAPSHOT_BEGIN, 0));
+                for (JournalEntry e : snapshot.get()) {
+                    out.writeObject(e);
+                    if (++sent % RESET_EVERY == 0) out.reset();
+                }
+                out.writeObject(new JournalEntry(seq.get(), JournalEntry.Op.SNAPSHOT_END, 0));
+                out.flush();
+                while (!overflowed) {
+                    JournalEntry e = queue.poll(HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+                    out.writeObject(e != null ? e : new JournalEntry(seq.get(), JournalEntry.Op.HEARTBEAT, 0));
+                    if (++sent % RESET_EVERY == 0) out.reset();
+                    // Send whatever else is already waiting before flushing
+                    while ((e = queue.poll()) != null) {
+                        out.writeObject(e);
+                        if (++sent % RESET_EVERY == 0) out.reset();
+                    }
+                    out.flush();
+                }
+                // Tell it why, so it reconnects for a fresh snapshot instead of suspecting the primary
+                LOGGER.warning("Standby " + socket.getRemoteSocketAddress() + " fell too far behind, asking it to resync");
+                out.writeObject(new JournalEntry(seq.get(), JournalEntry.Op.RESYNC, 0));
+                out.flush();
+            } catch (IOException | InterruptedException e) {
+                LOGGER.log(Level.INFO, "Standby " + socket.getRemoteSocketAddress() + " disconnected", e);
+            } finally {
+                subscribers.remove(this);
+                close();
+            }
+        }
+
+        private void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // already closing
+            }
+        }
+    }
+}
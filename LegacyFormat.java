@@ -0,0 +1,79 @@
+import java.io.*;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads records written before the models were unified, when the GUI kept its own nested
+ * {@code HospitalManagementGUI.Doctor}/{@code Patient} classes (legacy {@code hospital_data.ser}
+ * bundles, older block files, archive and shard files).
+ *
+ * {@link Input} swaps those class descriptors for field-compatible stand-ins below, which
+ * resolve themselves to the shared {@link Doctor} and {@link Patient} as they are read.
+ */
+final class LegacyFormat {
+    private static final Map<String, Class<?>> STAND_INS = new HashMap<>();
+
+    static {
+        STAND_INS.put("HospitalManagementGUI$Doctor", OldDoctor.class);
+        STAND_INS.put("HospitalManagementGUI$Patient", OldPatient.class);
+        STAND_INS.put("HospitalManagementGUI$DataBundle", Bundle.class);
+    }
+
+    private LegacyFormat() {}
+
+    /** ObjectInputStream that also understands the pre-unification classes. */
+    static final class Input extends ObjectInputStream {
+        Input(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+            ObjectStreamClass desc = super.readClassDescriptor();
+            Class<?> standIn = STAND_INS.get(desc.getName());
+            if (standIn == null) return desc;
+            // The stand-ins declare the same fields, so the stream layout is unchanged
+            ObjectStreamClass local = ObjectStreamClass.lookup(standIn);
+            if (local.getSerialVersionUID() != desc.getSerialVersionUID()) {
+                throw new InvalidClassException(desc.getName(), "unknown legacy version " + desc.getSerialVersionUID());
+            }
+            return local;
+        }
+    }
+
+    private static final class OldDoctor implements Serializable {
+        private static final long serialVersionUID = 0x2b26fd91b6cf05f8L;
+        private String doctorId;
+        private String name;
+        private String department;
+
+        private Object readResolve() {
+            return new Doctor(doctorId, name, department);
+        }
+    }
+
+    private static final class OldPatient implements Serializable {
+        private static final long serialVersionUID = 0x88bdb91c2bad4631L;
+        private String patientId;
+        private String name;
+        private String department;
+        private Object assignedDoctor; // already resolved to a Doctor when this is read
+        private double outstandingBill;
+
+        private Object readResolve() {
+            String doctorId = assignedDoctor instanceof Doctor ? ((Doctor) assignedDoctor).getDoctorId() : null;
+            return new Patient(patientId, name, department, doctorId, outstandingBill);
+        }
+    }
+
+    /** The old single-object save format. */
+    static final class Bundle implements Serializable {
+        private static final long serialVersionUID = 0x07bbd37a602de69cL;
+        private List<Doctor> doctors;
+        private List<Patient> patients;
+
+        List<Doctor> getDoctors() { return doctors; }
+        List<Patient> getPatients() { return patients; }
+    }
+}
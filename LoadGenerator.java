@@ -0,0 +1,395 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Synthetic workload for soak tests: many concurrent clients issuing a weighted mix of
+ * operations at a fixed target rate against the patient registry.
+ *
+ * By default the registry is an in-process {@link HospitalService} (the model the console, the
+ * GUI and the shard servers all share); {@code --router host:port,...} drives a live cluster
+ * through a {@link ShardRouter} instead. Operations are scheduled open-loop: each one has an intended
+ * start time derived from the target rate and its latency is measured from then, so a stall
+ * shows up as latency instead of silently lowering the offered load. Every report interval
+ * prints throughput, latency percentiles per operation, heap usage and GC activity.
+ *
+ * <pre>
+ * java LoadGenerator [--rate 5000] [--clients 200] [--duration 60] [--report-every 10]
+ *                    [--preload 10000] [--mix add-patient=15,add-doctor=1,assign=20,bill=30,search=33,save=1]
+ *                    [--router host:port,host:port [--user admin]]
+ * </pre>
+ * Clients run on virtual threads when the JDK has them (21 or later) and on one platform
+ * thread each otherwise, so the generator builds and runs with the rest of the app.
+ */
+public class LoadGenerator {
+    enum Op { ADD_PATIENT, ADD_DOCTOR, ASSIGN, BILL, SEARCH, SAVE }
+
+    private static final String[] DEPARTMENTS = {"Cardiology", "Neurology", "Oncology", "Pediatrics", "Orthopedics", "Radiology", "Emergency", "Dermatology"};
+
+    private final Target target;
+    private final Op[] opTable;
+    private final AtomicInteger patientCount = new AtomicInteger();
+    private final AtomicInteger doctorCount = new AtomicInteger();
+    private final Map<Op, Histogram> totals = new LinkedHashMap<>();
+    private final Map<Op, AtomicReference<Histogram>> intervals = new LinkedHashMap<>();
+    private final Map<Op, LongAdder> failures = new LinkedHashMap<>();
+
+    LoadGenerator(Target target, Map<Op, Integer> mix) {
+        this.target = target;
+        List<Op> table = new ArrayList<>();
+        mix.forEach((op, weight) -> {
+            for (int i = 0; i < weight; i++) table.add(op);
+        });
+        if (table.isEmpty()) throw new IllegalArgumentException("Operation mix is empty");
+        this.opTable = table.toArray(new Op[0]);
+        for (Op op : Op.values()) {
+            totals.put(op, new Histogram());
+            intervals.put(op, new AtomicReference<>(new Histogram()));
+            failures.put(op, new LongAdder());
+        }
+    }
+
+    void preload(int patients, int doctors) {
+        for (int i = 0; i < doctors; i++) execute(Op.ADD_DOCTOR);
+        for (int i = 0; i < patients; i++) execute(Op.ADD_PATIENT);
+    }
+
+    /** Runs the workload for {@code durationSeconds}, printing a report every {@code reportSeconds}. */
+    void run(double rate, int clients, long durationSeconds, long reportSeconds) throws InterruptedException {
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+        double nanosPerOp = 1e9 / rate;
+        AtomicLong tickets = new AtomicLong();
+        ExecutorService pool = clientPool(clients);
+        try {
+            for (int c = 0; c < clients; c++) {
+                pool.submit(() -> {
+                    while (true) {
+                        long intended = start + (long) (tickets.getAndIncrement() * nanosPerOp);
+                        // Past the end, drop any backlog: the summary then shows how far short of the target we fell
+                        if (intended >= end || System.nanoTime() >= end) return;
+                        long wait = intended - System.nanoTime();
+                        if (wait > 0) {
+                            try {
+                                TimeUnit.NANOSECONDS.sleep(wait);
+                            } catch (InterruptedException e) {
+                                return;
+                            }
+                        }
+                        Op op = opTable[ThreadLocalRandom.current().nextInt(opTable.length)];
+                        try {
+                            execute(op);
+                        } catch (RuntimeException e) {
+                            failures.get(op).increment();
+                        }
+                        long latency = System.nanoTime() - intended;
+                        totals.get(op).record(latency);
+                        intervals.get(op).get().record(latency);
+                    }
+                });
+            }
+            Reporter reporter = new Reporter(start, rate);
+            while (System.nanoTime() < end) {
+                Thread.sleep(Math.min(TimeUnit.SECONDS.toMillis(reportSeconds), Math.max(1, TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime()))));
+                reporter.interval();
+            }
+            pool.shutdown();
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+            reporter.summary();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // Looked up reflectively so this compiles on the JDK the rest of the app builds with
+    private static ExecutorService clientPool(int clients) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("No virtual threads on this JDK; using " + clients + " platform threads");
+            return Executors.newFixedThreadPool(clients);
+        }
+    }
+
+    private void execute(Op op) {
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        switch (op) {
+            case ADD_PATIENT: {
+                int n = patientCount.getAndIncrement();
+                target.addPatient("P" + n, "Patient " + n, DEPARTMENTS[rnd.nextInt(DEPARTMENTS.length)]);
+                break;
+            }
+            case ADD_DOCTOR: {
+                int n = doctorCount.getAndIncrement();
+                target.addDoctor("D" + n, "Doctor " + n, DEPARTMENTS[n % DEPARTMENTS.length]);
+                break;
+            }
+            case ASSIGN:
+                if (patientCount.get() > 0 && doctorCount.get() > 0) {
+                    target.assign("P" + rnd.nextInt(patientCount.get()), "D" + rnd.nextInt(doctorCount.get()));
+                }
+                break;
+            case BILL:
+                if (patientCount.get() > 0) target.bill("P" + rnd.nextInt(patientCount.get()), 10 + rnd.nextInt(990));
+                break;
+            case SEARCH:
+                target.search(DEPARTMENTS[rnd.nextInt(DEPARTMENTS.length)]);
+                break;
+            case SAVE:
+                target.save();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown op " + op);
+        }
+    }
+
+    // -------------------- Targets --------------------
+    interface Target extends AutoCloseable {
+        void addDoctor(String id, String name, String dept);
+        void addPatient(String id, String name, String dept);
+        void assign(String patientId, String doctorId);
+        void bill(String patientId, double amount);
+        void search(String dept);
+        void save();
+        @Override
+        void close();
+    }
+
+    // The shared registry in this process, saving to a scratch file. No archive or audit log,
+    // so the numbers are the registry's own.
+    static final class LocalTarget implements Target {
+        private final File file;
+        private final HospitalService service = new HospitalService(null, null);
+
+        LocalTarget() throws IOException {
+            file = File.createTempFile("loadgen-", ".ser");
+        }
+
+        @Override public void addDoctor(String id, String name, String dept) { service.addDoctor(new Doctor(id, name, dept)); }
+        @Override public void addPatient(String id, String name, String dept) { service.addPatient(new Patient(id, name, dept)); }
+        @Override public void assign(String patientId, String doctorId) { service.assignDoctor(patientId, doctorId); }
+        @Override public void bill(String patientId, double amount) { service.bill(patientId, amount); }
+        @Override public void search(String dept) { service.patientsInDepartment(dept); }
+
+        @Override
+        public void save() {
+            try {
+                service.save(file);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!file.delete()) file.deleteOnExit();
+        }
+    }
+
+    static final class RouterTarget implements Target {
+        private final ShardRouter router;
+
+        RouterTarget(List<String> addresses, String user, char[] password) {
+            router = new ShardRouter(addresses, ShardRouter.Partitioning.PATIENT_ID, user, password, false);
+        }
+
+        @Override public void addDoctor(String id, String name, String dept) { router.addDoctor(id, name, dept); }
+        @Override public void addPatient(String id, String name, String dept) { router.addPatient(id, name, dept); }
+        @Override public void assign(String patientId, String doctorId) { router.assignDoctor(patientId, doctorId); }
+        @Override public void bill(String patientId, double amount) { router.bill(patientId, amount); }
+        @Override public void search(String dept) { router.patientsInDepartment(dept); }
+        @Override public void save() { router.saveAll(); }
+        @Override public void close() { router.close(); }
+    }
+
+    // -------------------- Reporting --------------------
+    private final class Reporter {
+        private final long start;
+        private long last;
+        private long lastGcCount;
+        private long lastGcMillis;
+        private long peakHeap;
+        private final double targetRate;
+
+        Reporter(long start, double targetRate) {
+            this.start = start;
+            this.targetRate = targetRate;
+            this.last = start;
+        }
+
+        void interval() {
+            long now = System.nanoTime();
+            double seconds = (now - last) / 1e9;
+            last = now;
+            long ops = 0;
+            Histogram all = new Histogram();
+            StringBuilder perOp = new StringBuilder();
+            for (Op op : Op.values()) {
+                Histogram h = intervals.get(op).getAndSet(new Histogram());
+                if (h.count() == 0) continue;
+                ops += h.count();
+                all.add(h);
+                perOp.append(String.format("    %-12s %8d ops  p50 %s  p99 %s  max %s%n", op, h.count(), ms(h.percentile(50)), ms(h.percentile(99)), ms(h.max())));
+            }
+            long gcCount = 0, gcMillis = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                gcCount += Math.max(0, gc.getCollectionCount());
+                gcMillis += Math.max(0, gc.getCollectionTime());
+            }
+            MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+            peakHeap = Math.max(peakHeap, heap.getUsed());
+            System.out.printf("[%5ds] %,.0f ops/s  p50 %s  p99 %s  p99.9 %s  max %s | heap %d/%d MB | GC %d runs, %d ms (%.1f%% of interval) | %d patients%n",
+                    TimeUnit.NANOSECONDS.toSeconds(now - start), ops / seconds, ms(all.percentile(50)), ms(all.percentile(99)), ms(all.percentile(99.9)), ms(all.max()),
+                    heap.getUsed() >> 20, heap.getCommitted() >> 20, gcCount - lastGcCount, gcMillis - lastGcMillis,
+                    100.0 * (gcMillis - lastGcMillis) / (seconds * 1000), patientCount.get());
+            System.out.print(perOp);
+            lastGcCount = gcCount;
+            lastGcMillis = gcMillis;
+        }
+
+        void summary() {
+            double seconds = (System.nanoTime() - start) / 1e9;
+            Histogram all = new Histogram();
+            System.out.println("=== Summary ===");
+            for (Op op : Op.values()) {
+                Histogram h = totals.get(op);
+                if (h.count() == 0) continue;
+                all.add(h);
+                System.out.printf("%-12s %10d ops  %6d failed  p50 %s  p90 %s  p99 %s  p99.9 %s  max %s%n", op, h.count(), failures.get(op).sum(),
+                        ms(h.percentile(50)), ms(h.percentile(90)), ms(h.percentile(99)), ms(h.percentile(99.9)), ms(h.max()));
+            }
+            System.out.printf("Total %d ops in %.1f s (%,.0f ops/s of %,.0f targeted), p99 %s; peak heap %d MB, GC %d runs, %d ms%n",
+                    all.count(), seconds, all.count() / seconds, targetRate, ms(all.percentile(99)), peakHeap >> 20, lastGcCount, lastGcMillis);
+        }
+    }
+
+    private static String ms(long nanos) {
+        return String.format("%.2fms", nanos / 1e6);
+    }
+
+    /**
+     * Lock-free latency histogram with log-linear buckets: 16 sub-buckets per power of two,
+     * so any recorded value is within about 6% of its bucket's bound.
+     */
+    static final class Histogram {
+        private static final int SUB_BITS = 4;
+        private final AtomicLongArray buckets = new AtomicLongArray(64 << SUB_BITS);
+        private final LongAdder count = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            long v = Math.max(1, nanos);
+            buckets.incrementAndGet(index(v));
+            count.increment();
+            max.accumulateAndGet(v, Math::max);
+        }
+
+        void add(Histogram other) {
+            for (int i = 0; i < buckets.length(); i++) {
+                long n = other.buckets.get(i);
+                if (n != 0) buckets.addAndGet(i, n);
+            }
+            count.add(other.count());
+            max.accumulateAndGet(other.max(), Math::max);
+        }
+
+        long count() { return count.sum(); }
+        long max() { return max.get(); }
+
+        /** Upper bound of the bucket holding the given percentile. */
+        long percentile(double p) {
+            long total = count();
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(total * p / 100.0);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) return Math.min(upperBound(i), max());
+            }
+            return max();
+        }
+
+        private static int index(long v) {
+            int exp = 63 - Long.numberOfLeadingZeros(v);
+            if (exp < SUB_BITS) return (int) v;
+            int sub = (int) (v >>> (exp - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+            return ((exp - SUB_BITS + 1) << SUB_BITS) + sub;
+        }
+
+        private static long upperBound(int index) {
+            if (index < 1 << SUB_BITS) return index;
+            int exp = (index >>> SUB_BITS) + SUB_BITS - 1;
+            long sub = index & ((1 << SUB_BITS) - 1);
+            return ((1L << SUB_BITS | sub) + 1 << (exp - SUB_BITS)) - 1;
+        }
+    }
+
+    // -------------------- Command line --------------------
+    static Map<Op, Integer> parseMix(String spec) {
+        Map<Op, Integer> mix = new LinkedHashMap<>();
+        for (String part : spec.split(",")) {
+            String[] kv = part.trim().split("=");
+            mix.put(Op.valueOf(kv[0].trim().toUpperCase().replace('-', '_')), Integer.parseInt(kv[1].trim()));
+        }
+        return mix;
+    }
+
+    public static void main(String[] args) throws Exception {
+        double rate = 5000;
+        int clients = 200;
+        long duration = 60;
+        long reportEvery = 10;
+        int preload = 10_000;
+        String mix = "add-patient=15,add-doctor=1,assign=20,bill=30,search=33,save=1";
+        String router = null;
+        String user = "admin";
+        try {
+            for (int i = 0; i < args.length; i += 2) {
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "--rate": rate = Double.parseDouble(value); break;
+                    case "--clients": clients = Integer.parseInt(value); break;
+                    case "--duration": duration = Long.parseLong(value); break;
+                    case "--report-every": reportEvery = Long.parseLong(value); break;
+                    case "--preload": preload = Integer.parseInt(value); break;
+                    case "--mix": mix = value; break;
+                    case "--router": router = value; break;
+                    case "--user": user = value; break;
+                    default: throw new IllegalArgumentException(args[i]);
+                }
+            }
+            parseMix(mix);
+        } catch (RuntimeException e) {
+            System.out.println("Usage: java LoadGenerator [--rate ops/s] [--clients n] [--duration s] [--report-every s] [--preload n]");
+            System.out.println("                          [--mix add-patient=15,add-doctor=1,assign=20,bill=30,search=33,save=1] [--router host:port,... [--user name]]");
+            return;
+        }
+        char[] password = null;
+        if (router != null && (password = ShardRouter.readPassword(user)) == null) return;
+        try (Target target = router != null ? new RouterTarget(Arrays.asList(router.split(",")), user, password) : new LocalTarget()) {
+            LoadGenerator gen = new LoadGenerator(target, parseMix(mix));
+            System.out.printf("Preloading %d patients... ", preload);
+            gen.preload(preload, Math.max(1, preload / 100));
+            System.out.println("done");
+            System.out.printf("Running %s at %.0f ops/s with %d clients for %d s%n", mix, rate, clients, duration);
+            gen.run(rate, clients, duration, reportEvery);
+        }
+    }
+}
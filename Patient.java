@@ -1,14 +1,28 @@
-public class Patient {
-    private String patientId;
-    private String name;
-    private String department;
-    private Doctor assignedDoctor;
+import java.io.Serializable;
+
+/**
+ * Immutable patient record: changes return a new version, so published snapshots never change
+ * underneath a reader. The assigned doctor is referenced by ID and resolved through
+ * {@link HospitalService}, so a record stays small and self-contained on disk and on the wire.
+ */
+public class Patient implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private final String patientId;
+    private final String name;
+    private final String department;
+    private final String assignedDoctorId;
+    private final double outstandingBill;
 
     public Patient(String patientId, String name, String department) {
+        this(patientId, name, department, null, 0.0);
+    }
+
+    Patient(String patientId, String name, String department, String assignedDoctorId, double outstandingBill) {
         this.patientId = patientId;
         this.name = name;
         this.department = department;
-        this.assignedDoctor = null;
+        this.assignedDoctorId = assignedDoctorId;
+        this.outstandingBill = outstandingBill;
     }
 
     public String getPatientId() {
@@ -23,23 +37,32 @@ public class Patient {
         return department;
     }
 
-    public void assignDoctor(Doctor doctor) {
-        this.assignedDoctor = doctor;
-        System.out.println("Doctor " + doctor.getName() + " assigned to patient " + name);
+    /** ID of the assigned doctor, or null if none. */
+    public String getAssignedDoctorId() {
+        return assignedDoctorId;
+    }
+
+    public double getOutstandingBill() {
+        return outstandingBill;
+    }
+
+    public Patient withAssignedDoctor(String doctorId) {
+        return new Patient(patientId, name, department, doctorId, outstandingBill);
     }
 
-    public void displayPatient() {
+    public Patient withBill(double amount) {
+        return new Patient(patientId, name, department, assignedDoctorId, outstandingBill + amount);
+    }
+
+    public Patient withOutstandingBill(double total) {
+        return new Patient(patientId, name, department, assignedDoctorId, total);
+    }
+
+    public void displayPatient(String assignedDoctorName) {
         System.out.println("Patient ID: " + patientId);
         System.out.println("Name: " + name);
         System.out.println("Department: " + department);
-        if (assignedDoctor != null) {
-            System.out.println("Assigned Doctor: " + assignedDoctor.getName());
-        } else {
-            System.out.println("Assigned Doctor: None");
-        }
-    }
-
-    public void generateBill(double amount) {
-        System.out.println("Bill for patient " + name + ": $" + amount);
+        System.out.println("Assigned Doctor: " + (assignedDoctorId != null ? assignedDoctorName : "None"));
+        System.out.printf("Outstanding Bill: %.2f%n", outstandingBill);
     }
 }
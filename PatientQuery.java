@@ -0,0 +1,377 @@
+import java.io.*;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.function.IntSupplier;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Composable query over admitted patients, e.g.
+ * {@code service.query().department("Cardiology").billBetween(100, 500).sortBy(Sort.BILL, true).limit(20).page()}.
+ *
+ * Criteria are ANDed. The planner starts from the most selective criterion that has an index
+ * (department, doctor, unassigned, admission date) and filters the candidates with the rest;
+ * with no usable index it scans the current snapshot. Unsorted results stream lazily; a sorted,
+ * limited query keeps only the best {@code limit} rows in a heap rather than sorting them all.
+ * Pages use keyset cursors carrying the last row's sort key, so paging stays stable while
+ * patients are admitted and discharged.
+ */
+public class PatientQuery {
+    public enum Sort {
+        ID(Comparator.comparing(Patient::getPatientId)),
+        NAME(Comparator.comparing(Patient::getName, String.CASE_INSENSITIVE_ORDER)),
+        DEPARTMENT(Comparator.comparing(Patient::getDepartment, String.CASE_INSENSITIVE_ORDER)),
+        BILL(Comparator.comparingDouble(Patient::getOutstandingBill));
+
+        private final Comparator<Patient> order;
+
+        Sort(Comparator<Patient> byKey) {
+            // Ties broken by ID, so every patient has a unique position for cursors
+            this.order = byKey.thenComparing(Patient::getPatientId);
+        }
+    }
+
+    /** One page of results and the cursor for the next, which is null on the last page. */
+    public static final class Page {
+        private final List<Patient> items;
+        private final String nextCursor;
+
+        Page(List<Patient> items, String nextCursor) {
+            this.items = items;
+            this.nextCursor = nextCursor;
+        }
+
+        public List<Patient> getItems() { return items; }
+        public String getNextCursor() { return nextCursor; }
+    }
+
+    private final VersionedStore<Patient> patients;
+    private final VersionedStore.Index<Patient> byDepartment;
+    private final VersionedStore.Index<Patient> byDoctor;
+    private final List<Criterion> criteria = new ArrayList<>();
+    private Sort sort;
+    private boolean descending;
+    private String cursor;
+    private int limit = Integer.MAX_VALUE;
+    // How the latest run was driven, so explain() describes it without planning again
+    private Plan lastPlan;
+
+    PatientQuery(VersionedStore<Patient> patients, VersionedStore.Index<Patient> byDepartment, VersionedStore.Index<Patient> byDoctor) {
+        this.patients = patients;
+        this.byDepartment = byDepartment;
+        this.byDoctor = byDoctor;
+    }
+
+    /** The department index groups by this, so lookups ignore case. */
+    static String departmentKey(String department) {
+        return department.toLowerCase(Locale.ROOT);
+    }
+
+    // -------------------- Criteria --------------------
+    public PatientQuery department(String department) {
+        String key = departmentKey(department);
+        criteria.add(new Criterion("department=" + department, p -> departmentKey(p.getDepartment()).equals(key),
+                () -> byDepartment.count(key), () -> byDepartment.keys(key)));
+        return this;
+    }
+
+    public PatientQuery doctor(String doctorId) {
+        criteria.add(new Criterion("doctor=" + doctorId, p -> doctorId.equals(p.getAssignedDoctorId()),
+                () -> byDoctor.count(doctorId), () -> byDoctor.keys(doctorId)));
+        return this;
+    }
+
+    public PatientQuery unassigned() {
+        criteria.add(new Criterion("unassigned", p -> p.getAssignedDoctorId() == null,
+                () -> byDoctor.count(null), () -> byDoctor.keys(null)));
+        return this;
+    }
+
+    /** Outstanding bill within {@code [min, max]}. */
+    public PatientQuery billBetween(double min, double max) {
+        criteria.add(new Criterion("bill " + min + ".." + max, p -> p.getOutstandingBill() >= min && p.getOutstandingBill() <= max, null, null));
+        return this;
+    }
+
+    /** Name starting with {@code prefix}, ignoring case. */
+    public PatientQuery namePrefix(String prefix) {
+        criteria.add(new Criterion("name=" + prefix + "*", p -> p.getName().regionMatches(true, 0, prefix, 0, prefix.length()), null, null));
+        return this;
+    }
+
+    /** Admitted (per {@code history}) at some time in {@code [from, to)}, in epoch millis. */
+    public PatientQuery admittedBetween(VisitHistory history, long from, long to) {
+        Predicate<Patient> test = p -> {
+            for (VisitEvent e : history.forPatient(p.getPatientId())) {
+                if (e.getType() == VisitEvent.Type.ADMISSION && e.getTimestamp() >= from && e.getTimestamp() < to) return true;
+            }
+            return false;
+        };
+        // No cheap count here: the plan fetches the IDs once and both counts and uses them
+        criteria.add(new Criterion("admitted " + from + ".." + to, test, null, () -> history.query(VisitEvent.Type.ADMISSION, null, from, to).stream()
+                .map(VisitEvent::getPatientId).distinct().collect(Collectors.toList())));
+        return this;
+    }
+
+    /**
+     * Adds criteria from search text: {@code dept:X}, {@code doctor:ID}, {@code unassigned},
+     * {@code name:Prefix}, {@code bill>=N}, {@code bill<=N}, {@code admitted>=YYYY-MM-DD},
+     * {@code admitted<YYYY-MM-DD} and {@code sort:name} (or {@code sort:-bill} for descending).
+     * Other words join the department name ({@code dept:General Surgery}), so plain text searches
+     * by department as before, and department names may contain {@code :}, {@code <} or {@code >}.
+     *
+     * @param history for admission dates, or null if there is none
+     * @throws IllegalArgumentException if the text is blank or a bill or admission term is malformed
+     */
+    public PatientQuery matching(String text, VisitHistory history) {
+        List<String> words = new ArrayList<>();
+        long admittedFrom = Long.MIN_VALUE;
+        long admittedTo = Long.MAX_VALUE;
+        double billMin = Double.NEGATIVE_INFINITY;
+        double billMax = Double.POSITIVE_INFINITY;
+        // Blank text would otherwise match the whole census
+        if (text.trim().isEmpty()) throw new IllegalArgumentException("Enter a department or a search term");
+        for (String term : text.trim().split("\\s+")) {
+            String lower = term.toLowerCase(Locale.ROOT);
+            if (term.isEmpty()) {
+                continue;
+            } else if (lower.equals("unassigned")) {
+                unassigned();
+            } else if (lower.startsWith("dept:")) {
+                words.add(term.substring(5));
+            } else if (lower.startsWith("doctor:")) {
+                doctor(term.substring(7));
+            } else if (lower.startsWith("name:")) {
+                namePrefix(term.substring(5));
+            } else if (lower.startsWith("bill>=")) {
+                billMin = parseAmount(term.substring(6));
+            } else if (lower.startsWith("bill<=")) {
+                billMax = parseAmount(term.substring(6));
+            } else if (lower.startsWith("admitted>=")) {
+                admittedFrom = parseDate(term.substring(10));
+            } else if (lower.startsWith("admitted<")) {
+                admittedTo = parseDate(term.substring(9));
+            } else if (lower.startsWith("sort:")) {
+                boolean desc = lower.startsWith("sort:-");
+                try {
+                    sortBy(Sort.valueOf(lower.substring(desc ? 6 : 5).toUpperCase(Locale.ROOT)), desc);
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Unknown sort in '" + term + "'; use id, name, department or bill");
+                }
+            } else if (lower.matches("(bill|admitted)[<>=].*")) {
+                throw new IllegalArgumentException("Unknown search term '" + term + "'; use bill>=, bill<=, admitted>= or admitted<");
+            } else {
+                words.add(term);
+            }
+        }
+        if (!words.isEmpty()) department(String.join(" ", words));
+        if (billMin != Double.NEGATIVE_INFINITY || billMax != Double.POSITIVE_INFINITY) billBetween(billMin, billMax);
+        if (admittedFrom != Long.MIN_VALUE || admittedTo != Long.MAX_VALUE) {
+            if (history == null) throw new IllegalArgumentException("Admission dates are not available here");
+            admittedBetween(history, admittedFrom, admittedTo);
+        }
+        return this;
+    }
+
+    private static double parseAmount(String s) {
+        try {
+            return Double.parseDouble(s);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid amount '" + s + "'");
+        }
+    }
+
+    private static long parseDate(String s) {
+        try {
+            return LocalDate.parse(s).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid date '" + s + "'; use YYYY-MM-DD");
+        }
+    }
+
+    // -------------------- Ordering and paging --------------------
+    public PatientQuery sortBy(Sort sort, boolean descending) {
+        this.sort = sort;
+        this.descending = descending;
+        return this;
+    }
+
+    /** True once a sort has been set, i.e. results come in that order rather than the index's. */
+    public boolean isSorted() {
+        return sort != null;
+    }
+
+    /** Resumes after the last row of a previous page; the query must use the same sort. */
+    public PatientQuery after(String cursor) {
+        this.cursor = cursor;
+        return this;
+    }
+
+    public PatientQuery limit(int limit) {
+        if (limit <= 0) throw new IllegalArgumentException("limit must be positive");
+        this.limit = limit;
+        return this;
+    }
+
+    // -------------------- Execution --------------------
+    /** True if {@code p} meets every criterion (sort, cursor and limit aside). */
+    public boolean matches(Patient p) {
+        for (Criterion c : criteria) {
+            if (!c.test.test(p)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Matching patients in order. Lazy unless sorted: an unlimited sort has to see every match
+     * first, a limited one holds at most {@code limit} of them.
+     */
+    public Stream<Patient> stream() {
+        return run(limit);
+    }
+
+    /** Fetches up to {@code limit} rows in sort order (ID order unless sorted otherwise). */
+    public Page page() {
+        if (limit == Integer.MAX_VALUE) throw new IllegalStateException("page() needs a limit");
+        if (sort == null) sort = Sort.ID;
+        // One row beyond the page tells whether there is a next one
+        List<Patient> rows = run(limit + 1).collect(Collectors.toList());
+        if (rows.size() <= limit) return new Page(rows, null);
+        rows = new ArrayList<>(rows.subList(0, limit));
+        return new Page(rows, encodeCursor(rows.get(limit - 1)));
+    }
+
+    /**
+     * How the query ran, or would run if it hasn't yet, e.g.
+     * {@code index department=Cardiology (12 candidates) -> filter bill 100.0..500.0}.
+     */
+    public String explain() {
+        Plan plan = lastPlan != null ? lastPlan : plan();
+        StringBuilder sb = new StringBuilder(plan.driver == null
+                ? "scan " + plan.count + " patients"
+                : "index " + plan.driver.label + " (" + plan.count + " candidates)");
+        for (Criterion c : criteria) {
+            if (c != plan.driver) sb.append(" -> filter ").append(c.label);
+        }
+        if (cursor != null) sb.append(" -> after cursor");
+        if (sort != null) sb.append(" -> sort ").append(sort.name().toLowerCase(Locale.ROOT)).append(descending ? " desc" : "");
+        if (limit != Integer.MAX_VALUE) sb.append(sort != null ? " -> top " : " -> first ").append(limit);
+        return sb.toString();
+    }
+
+    // Drives the run from the indexed criterion with the fewest candidates, or a scan; re-planned on every run
+    private Plan plan() {
+        Plan best = new Plan(null, null, patients.snapshot().size());
+        for (Criterion c : criteria) {
+            if (c.candidates == null) continue;
+            List<String> ids = c.estimate == null ? c.candidates.get() : null;
+            int count = ids != null ? ids.size() : c.estimate.getAsInt();
+            if (count < best.count) best = new Plan(c, ids, count);
+        }
+        return best;
+    }
+
+    private Stream<Patient> run(int max) {
+        Plan plan = plan();
+        lastPlan = plan;
+        Stream<Patient> source = plan.driver == null
+                ? patients.snapshot().values().stream()
+                : plan.candidates().stream().map(patients::get).flatMap(Optional::stream);
+        Stream<Patient> matching = source.filter(this::matches);
+        if (cursor != null) {
+            Patient last = decodeCursor(cursor);
+            Comparator<Patient> order = order();
+            matching = matching.filter(p -> order.compare(p, last) > 0);
+        }
+        if (sort == null) return max == Integer.MAX_VALUE ? matching : matching.limit(max);
+        if (max == Integer.MAX_VALUE) return matching.sorted(order());
+        return best(matching, order(), max).stream();
+    }
+
+    private Comparator<Patient> order() {
+        return descending ? sort.order.reversed() : sort.order;
+    }
+
+    // The first k of the stream in order, holding no more than k at a time
+    private static List<Patient> best(Stream<Patient> stream, Comparator<Patient> order, int k) {
+        PriorityQueue<Patient> worstFirst = new PriorityQueue<>(order.reversed());
+        stream.forEach(p -> {
+            if (worstFirst.size() < k) {
+                worstFirst.add(p);
+            } else if (order.compare(p, worstFirst.peek()) < 0) {
+                worstFirst.poll();
+                worstFirst.add(p);
+            }
+        });
+        List<Patient> result = new ArrayList<>(worstFirst);
+        result.sort(order);
+        return result;
+    }
+
+    // A cursor holds the sort and the fields of the last row, enough to rebuild its position
+    private String encodeCursor(Patient last) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(sort.name());
+            out.writeBoolean(descending);
+            out.writeUTF(last.getPatientId());
+            out.writeUTF(last.getName());
+            out.writeUTF(last.getDepartment());
+            out.writeDouble(last.getOutstandingBill());
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Patient decodeCursor(String cursor) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(Base64.getUrlDecoder().decode(cursor)));
+            Sort cursorSort = Sort.valueOf(in.readUTF());
+            boolean cursorDescending = in.readBoolean();
+            if (sort == null) sortBy(cursorSort, cursorDescending);
+            if (cursorSort != sort || cursorDescending != descending) throw new IllegalArgumentException("Cursor belongs to a query with a different sort");
+            return new Patient(in.readUTF(), in.readUTF(), in.readUTF(), null, in.readDouble());
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid cursor", e);
+        }
+    }
+
+    // The criterion a run starts from (null to scan) and how many rows it yields; candidates the
+    // planner had to fetch in order to count them are kept rather than fetched a second time
+    private static final class Plan {
+        private final Criterion driver;
+        private final List<String> fetched;
+        private final int count;
+
+        Plan(Criterion driver, List<String> fetched, int count) {
+            this.driver = driver;
+            this.fetched = fetched;
+            this.count = count;
+        }
+
+        List<String> candidates() {
+            return fetched != null ? fetched : driver.candidates.get();
+        }
+    }
+
+    private static final class Criterion {
+        private final String label;
+        private final Predicate<Patient> test;
+        // Both null for criteria without an index; estimate alone null when counting means fetching
+        private final IntSupplier estimate;
+        private final Supplier<List<String>> candidates;
+
+        Criterion(String label, Predicate<Patient> test, IntSupplier estimate, Supplier<List<String>> candidates) {
+            this.label = label;
+            this.test = test;
+            this.estimate = estimate;
+            this.candidates = candidates;
+        }
+    }
+}
@@ -1,10 +1,10 @@
 public class Payment {
-    private Patient patient;
+    private final String patientId;
     private double amount;
     private boolean isPaid;
 
     public Payment(Patient patient, double amount) {
-        this.patient = patient;
+        this.patientId = patient.getPatientId();
         this.amount = amount;
         this.isPaid = false;
     }
@@ -16,7 +16,8 @@ public class Payment {
     public void makePayment() {
         if (!isPaid) {
             isPaid = true;
-            System.out.println("✅ Payment of Tk " + amount + " received from patient: " + patient.getPatientId());
+            System.out.println("✅ Payment of Tk " + amount + " received from patient: " + patientId);
+            AuditLog.shared().publish(SessionManager.currentUser(), "PAYMENT", patientId, Double.toString(amount));
         } else {
             System.out.println("⚠️ Payment already made.");
         }
@@ -24,7 +25,7 @@ public class Payment {
 
     public void displayPayment() {
         System.out.println("\n--- Payment Details ---");
-        System.out.println("Patient ID: " + patient.getPatientId());
+        System.out.println("Patient ID: " + patientId);
         System.out.println("Amount: Tk " + amount);
         System.out.println("Payment Status: " + (isPaid ? "Paid" : "Unpaid"));
     }
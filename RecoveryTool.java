@@ -0,0 +1,271 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Salvages a damaged block file: {@code java RecoveryTool <damaged-file> [<output-file>]}.
+ *
+ * The file is scanned front to back through a small window, so memory use is bounded by the
+ * largest block no matter how big the file is. Every block whose checksum is intact is copied
+ * to the output (default {@code <damaged-file>.recovered}); around damage the scanner slides
+ * forward byte by byte until it finds the next block marker that checks out. Lost blocks and
+ * unreadable byte ranges are reported at the end. Version 1 files have no markers, so their
+ * recovery stops at the first block that fails to decode.
+ *
+ * Encrypted blocks are copied without decrypting them while nothing before them was lost.
+ * After a loss they sit at a new position, which their encryption is bound to, so they are
+ * sealed again; that needs {@code hms.storage.keyFile}, and without it they are reported as
+ * needing the key rather than copied.
+ */
+public class RecoveryTool {
+    private static final int WINDOW = 1 << 20;
+    // How many lost blocks to allow for when working out where a moved encrypted block was written
+    private static final int MAX_LOST_BLOCKS = 64;
+
+    private final FileChannel channel;
+    private final long size;
+    private final ByteBuffer window = ByteBuffer.allocate(WINDOW);
+    private long windowStart = -WINDOW;
+
+    private final CRC32 crc = new CRC32();
+    // Only decodes to validate version 1 blocks and to reseal encrypted ones that moved
+    private final BlockCodecs codecs;
+    private int version;
+    // Version 3 added a codecs byte after the kind, shifting the later header fields
+    private int shift;
+    private int headerBytes;
+    private final Map<Character, Integer> salvagedRecords = new LinkedHashMap<>();
+    private final Map<Character, Integer> lostRecords = new LinkedHashMap<>();
+    private int salvagedBlocks;
+    private int lostBlocks;
+    private int needKeyBlocks;
+    private long unreadableBytes;
+    // Block headers met so far, intact or not: the earliest index the next block can have been written at
+    private int blocksSeen;
+    private boolean damageSeen;
+
+    RecoveryTool(FileChannel channel, BlockCodecs codecs) throws IOException {
+        this.channel = channel;
+        this.size = channel.size();
+        this.codecs = codecs;
+    }
+
+    /** Copies every intact block to {@code out}; returns true if nothing was lost. */
+    boolean recover(BlockFile.Writer out) throws IOException {
+        if (size < 8 || readInt(0) != BlockFile.MAGIC) throw new IOException("Not a block file (no header)");
+        version = readInt(4);
+        if (version == 1) return recoverVersion1(out);
+        if (version < 1 || version > BlockFile.VERSION) {
+            System.out.println("Unknown version " + version + ", scanning for blocks anyway");
+            version = BlockFile.VERSION;
+        }
+        shift = version > 2 ? 1 : 0;
+        headerBytes = BlockFile.headerBytes(version);
+
+        long pos = 8;
+        long damageStart = -1;
+        boolean sawEnd = false;
+        while (pos + 5 <= size) {
+            if (readInt(pos) == BlockFile.SYNC) {
+                if (readByte(pos + 4) == BlockFile.END) {
+                    sawEnd = true;
+                    pos += 5;
+                    break;
+                }
+                BlockFile.Block block = tryBlock(pos);
+                if (block != null) {
+                    if (damageStart >= 0) reportDamage(damageStart, pos);
+                    damageStart = -1;
+                    BlockFile.Block placed = placed(block);
+                    blocksSeen++;
+                    if (placed != null) {
+                        out.writeBlock(placed);
+                        salvagedBlocks++;
+                        salvagedRecords.merge((char) block.getKind(), block.getRecordCount(), Integer::sum);
+                    } else {
+                        lostBlocks++;
+                        needKeyBlocks++;
+                        lostRecords.merge((char) block.getKind(), block.getRecordCount(), Integer::sum);
+                        System.out.println("Encrypted block at offset " + pos + " is intact but follows lost data; it needs the key to be kept");
+                    }
+                    pos += headerBytes + payloadLength(pos);
+                    continue;
+                }
+                if (damageStart < 0) damageStart = pos;
+                noteLostHeader(pos);
+            } else if (damageStart < 0) {
+                damageStart = pos;
+            }
+            pos++;
+        }
+        if (!sawEnd) {
+            if (damageStart < 0) damageStart = pos;
+            if (damageStart < size) reportDamage(damageStart, size);
+            System.out.println("End marker missing: file was truncated at " + size + " bytes");
+        } else if (damageStart >= 0) {
+            reportDamage(damageStart, pos - 5);
+        }
+        return lostBlocks == 0 && unreadableBytes == 0 && sawEnd;
+    }
+
+    /**
+     * The block as it should be written out, or null if it can't be kept. Plain blocks and
+     * encrypted ones with nothing lost before them keep their bytes; an encrypted block after a
+     * loss has moved, so its original index is found by trying to decrypt it and it is resealed.
+     */
+    private BlockFile.Block placed(BlockFile.Block block) {
+        if ((block.getCodecs() & BlockCodecs.AesGcmCodec.FLAG) == 0) return block;
+        if (version > 3 && !damageSeen) return block;
+        if (!codecs.canDecode(BlockCodecs.AesGcmCodec.FLAG)) return null;
+        if (version < 4) return block; // not bound to a position; the writer reseals it for this file
+        for (int index = blocksSeen; index <= blocksSeen + MAX_LOST_BLOCKS; index++) {
+            BlockFile.Block candidate = block.at(index);
+            try {
+                candidate.decode();
+                return candidate;
+            } catch (IOException | ClassNotFoundException | ClassCastException e) {
+                // not this index (or not this key)
+            }
+        }
+        return null;
+    }
+
+    // Version 1 has no markers or checksums: salvage blocks in order until one fails to decode
+    private boolean recoverVersion1(BlockFile.Writer out) throws IOException {
+        long pos = 8;
+        while (pos < size) {
+            byte kind = readByte(pos);
+            if (kind == BlockFile.END) return true;
+            if (pos + 9 > size) break;
+            int count = readInt(pos + 1);
+            int length = readInt(pos + 5);
+            if (length < 0 || length > BlockFile.MAX_BLOCK_BYTES || pos + 9 + length > size) break;
+            BlockFile.Block block = new BlockFile.Block(kind, 0, count, read(pos + 9, length), codecs, -1);
+            try {
+                block.decode();
+            } catch (IOException | ClassNotFoundException | ClassCastException e) {
+                break;
+            }
+            out.writeBlock(block);
+            salvagedBlocks++;
+            salvagedRecords.merge((char) kind, count, Integer::sum);
+            pos += 9 + length;
+        }
+        System.out.println("Version 1 file unreadable from offset " + pos + " (" + (size - pos) + " bytes lost; this format cannot resynchronize)");
+        unreadableBytes += size - pos;
+        return false;
+    }
+
+    // The block at pos if its header is plausible and its checksum matches, otherwise null.
+    // The payload is copied still encoded, so encrypted blocks are salvaged without the key.
+    private BlockFile.Block tryBlock(long pos) throws IOException {
+        if (pos + headerBytes > size) return null;
+        byte kind = readByte(pos + 4);
+        int codecs = shift > 0 ? readByte(pos + 5) & 0xFF : 0;
+        int count = recordCount(pos);
+        int length = payloadLength(pos);
+        if (count < 0 || length < 0 || length > BlockFile.MAX_BLOCK_BYTES || pos + headerBytes + length > size) return null;
+        byte[] payload = read(pos + headerBytes, length);
+        if (BlockFile.checksum(crc, version, kind, codecs, count, payload) != readInt(pos + 13 + shift)) return null;
+        // Right as long as nothing was lost before it; see placed()
+        return new BlockFile.Block(kind, codecs, count, payload, this.codecs, version > 3 ? blocksSeen : -1);
+    }
+
+    private int recordCount(long pos) throws IOException {
+        return readInt(pos + 5 + shift);
+    }
+
+    private int payloadLength(long pos) throws IOException {
+        return readInt(pos + 9 + shift);
+    }
+
+    // A marker whose block fails its checksum: if the header looks sane it says what was lost
+    private void noteLostHeader(long pos) throws IOException {
+        if (pos + headerBytes > size) return;
+        int count = recordCount(pos);
+        int length = payloadLength(pos);
+        if (count < 0 || length < 0 || length > BlockFile.MAX_BLOCK_BYTES) return;
+        lostBlocks++;
+        blocksSeen++;
+        damageSeen = true;
+        char kind = (char) readByte(pos + 4);
+        lostRecords.merge(kind, count, Integer::sum);
+        System.out.println((pos + headerBytes + length > size ? "Truncated" : "Damaged") + " block at offset " + pos
+                + ": kind '" + kind + "', " + count + " records (per its header)");
+    }
+
+    private void reportDamage(long from, long to) {
+        damageSeen = true;
+        System.out.println("Skipped bytes " + from + " to " + to + " (" + (to - from) + " bytes)");
+        unreadableBytes += to - from;
+    }
+
+    void printReport() {
+        System.out.println("Salvaged " + salvagedBlocks + " blocks: " + salvagedRecords);
+        System.out.println("Lost " + lostBlocks + " blocks" + (lostRecords.isEmpty() ? "" : ": " + lostRecords)
+                + ", " + unreadableBytes + " bytes unreadable");
+        if (needKeyBlocks > 0) {
+            System.out.println(needKeyBlocks + " of those are intact but encrypted and were left out; rerun with"
+                    + " -Dhms.storage.keyFile=<key file> to keep them");
+        }
+    }
+
+    // -------------------- Windowed positional reads --------------------
+    private byte readByte(long pos) throws IOException {
+        if (pos < windowStart || pos >= windowStart + window.limit()) fill(pos);
+        return window.get((int) (pos - windowStart));
+    }
+
+    private int readInt(long pos) throws IOException {
+        return ((readByte(pos) & 0xFF) << 24) | ((readByte(pos + 1) & 0xFF) << 16)
+                | ((readByte(pos + 2) & 0xFF) << 8) | (readByte(pos + 3) & 0xFF);
+    }
+
+    private byte[] read(long pos, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        if (pos >= windowStart && pos + length <= windowStart + window.limit()) {
+            window.get((int) (pos - windowStart), bytes);
+            return bytes;
+        }
+        ByteBuffer dst = ByteBuffer.wrap(bytes);
+        while (dst.hasRemaining()) {
+            if (channel.read(dst, pos + dst.position()) < 0) throw new EOFException();
+        }
+        return bytes;
+    }
+
+    private void fill(long pos) throws IOException {
+        window.clear();
+        while (window.hasRemaining() && channel.read(window, pos + window.position()) > 0) {
+            // keep filling
+        }
+        window.flip();
+        windowStart = pos;
+        if (window.limit() == 0) throw new EOFException("Offset " + pos + " is past the end of the file");
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.out.println("Usage: java RecoveryTool <damaged-file> [<output-file>]");
+            return;
+        }
+        File damaged = new File(args[0]);
+        File output = new File(args.length > 1 ? args[1] : args[0] + ".recovered");
+        long start = System.nanoTime();
+        boolean clean;
+        try (FileChannel in = FileChannel.open(damaged.toPath(), StandardOpenOption.READ)) {
+            RecoveryTool tool = new RecoveryTool(in, BlockCodecs.shared());
+            boolean[] result = new boolean[1];
+            BlockFile.writeAtomically(output, out -> result[0] = tool.recover(out));
+            clean = result[0];
+            tool.printReport();
+        }
+        System.out.printf("Wrote %s in %d ms%n", output, (System.nanoTime() - start) / 1_000_000);
+        System.out.println(clean ? "No damage found." : "Damage found; replace the original with the recovered file to keep the salvaged records.");
+        if (!clean) System.exit(2);
+    }
+}
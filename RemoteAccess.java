@@ -0,0 +1,102 @@
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Set;
+
+/**
+ * What the replication and shard sockets share to keep strangers out.
+ *
+ * Listeners bind to loopback unless a property names another address, incoming objects are
+ * limited to the classes each protocol actually sends, and {@link #handshake} proves both ends
+ * hold the same secret before either side deserializes anything. The secret itself never
+ * crosses the wire.
+ */
+final class RemoteAccess {
+    private static final int NONCE_BYTES = 32;
+    private static final int HANDSHAKE_TIMEOUT_MS = 5000;
+    private static final int MAX_DEPTH = 10;
+    private static final int MAX_ARRAY = 1_000_000;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private RemoteAccess() {
+    }
+
+    /** The address named by {@code property}, or loopback when it is unset. */
+    static InetAddress bindAddress(String property) throws IOException {
+        String address = System.getProperty(property);
+        return address == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(address);
+    }
+
+    /** Reads the shared secret from the file named by {@code property}; fails if it is unset or empty. */
+    static byte[] secret(String property) throws IOException {
+        String file = System.getProperty(property);
+        if (file == null) throw new IOException("Set " + property + " to a file holding the shared secret (java BlockCodecs genkey <file> makes one)");
+        byte[] secret = Files.readAllBytes(new File(file).toPath());
+        if (secret.length == 0) throw new IOException("Shared secret file " + file + " is empty");
+        return secret;
+    }
+
+    /** An object stream that rejects every class outside {@code allowed} (plus strings, enums, boxes and arrays). */
+    static ObjectInputStream objectInput(InputStream in, Class<?>... allowed) throws IOException {
+        Set<Class<?>> classes = Set.of(allowed);
+        ObjectInputStream ois = new ObjectInputStream(in);
+        ois.setObjectInputFilter(info -> {
+            if (info.depth() > MAX_DEPTH || info.arrayLength() > MAX_ARRAY) return ObjectInputFilter.Status.REJECTED;
+            Class<?> c = info.serialClass();
+            if (c == null) return ObjectInputFilter.Status.ALLOWED;
+            // Collections read their elements through an Object[]; the elements are still checked one by one
+            while (c.isArray()) c = c.getComponentType();
+            boolean ok = c.isPrimitive() || c == Object.class || classes.contains(c) || c == String.class || c == Enum.class
+                    || c == Number.class || c == Boolean.class || c == Integer.class || c == Long.class || c == Double.class;
+            return ok ? ObjectInputFilter.Status.ALLOWED : ObjectInputFilter.Status.REJECTED;
+        });
+        return ois;
+    }
+
+    /**
+     * Mutual challenge-response over the raw socket, before any object stream is opened. Each
+     * side sends a fresh nonce and answers the other's with an HMAC over both, labelled by role
+     * so an answer can't be reflected back. Throws if the other end doesn't know the secret.
+     */
+    static void handshake(Socket socket, byte[] secret, boolean server) throws IOException {
+        int timeout = socket.getSoTimeout();
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        byte[] mine = new byte[NONCE_BYTES];
+        RANDOM.nextBytes(mine);
+        out.write(mine);
+        out.flush();
+        byte[] theirs = new byte[NONCE_BYTES];
+        in.readFully(theirs);
+        String me = server ? "server" : "client";
+        String them = server ? "client" : "server";
+        out.write(mac(secret, me, theirs, mine));
+        out.flush();
+        byte[] answer = new byte[32];
+        in.readFully(answer);
+        if (!MessageDigest.isEqual(answer, mac(secret, them, mine, theirs))) {
+            throw new IOException("Peer " + socket.getRemoteSocketAddress() + " failed authentication");
+        }
+        socket.setSoTimeout(timeout);
+    }
+
+    private static byte[] mac(byte[] secret, String role, byte[] challenge, byte[] response) throws IOException {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            mac.update(role.getBytes(StandardCharsets.US_ASCII));
+            mac.update(challenge);
+            return mac.doFinal(response);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("HmacSHA256 unavailable", e);
+        }
+    }
+}
@@ -1,11 +1,11 @@
 
 public class Report {
-    private Patient patient;
+    private final String patientId;
     private String diagnosis;
     private String prescription;
 
     public Report(Patient patient, String diagnosis, String prescription) {
-        this.patient = patient;
+        this.patientId = patient.getPatientId();
         this.diagnosis = diagnosis;
         this.prescription = prescription;
     }
@@ -14,9 +14,18 @@ public class Report {
         return diagnosis;
     }
 
+    public String getPrescription() {
+        return prescription;
+    }
+
+    // One-line form kept as the note of the report's visit event
+    public String getSummary() {
+        return diagnosis + " (Rx: " + prescription + ")";
+    }
+
     public void displayReport() {
         System.out.println("\n--- Patient Report ---");
-        System.out.println("Patient ID: " + patient.getPatientId());
+        System.out.println("Patient ID: " + patientId);
         System.out.println("Diagnosis: " + diagnosis);
         System.out.println("Prescription: " + prescription);
     }
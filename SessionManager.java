@@ -0,0 +1,157 @@
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Operator sessions on top of a {@link UserStore}.
+ *
+ * The password hash is checked once at login; after that every operation only checks the
+ * session's cached state (a volatile flag and a timestamp), so authentication adds nothing
+ * noticeable per call. Any number of sessions can be open at once against the same model.
+ * Operations run through a session are counted and timed per user.
+ */
+public class SessionManager {
+    private final UserStore users;
+    private final long idleTimeoutMillis;
+    private final SecureRandom random = new SecureRandom();
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final Map<String, UserStats> stats = new ConcurrentHashMap<>();
+
+    /** @param idleTimeoutMillis sessions idle longer than this expire; 0 means never */
+    public SessionManager(UserStore users, long idleTimeoutMillis) {
+        this.users = users;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    public Optional<Session> login(String username, char[] password) {
+        if (!users.authenticate(username, password)) return Optional.empty();
+        byte[] token = new byte[16];
+        random.nextBytes(token);
+        Session s = new Session(HexFormat.of().formatHex(token), username, stats.computeIfAbsent(username, UserStats::new));
+        sessions.put(s.token, s);
+        return Optional.of(s);
+    }
+
+    /** Looks up an open session by token, e.g. for a request arriving over the network. */
+    public Optional<Session> find(String token) {
+        Session s = sessions.get(token);
+        return s != null && s.isValid() ? Optional.of(s) : Optional.empty();
+    }
+
+    public void logout(Session s) {
+        s.open = false;
+        sessions.remove(s.token);
+    }
+
+    public int openSessions() {
+        sessions.values().removeIf(s -> !s.isValid());
+        return sessions.size();
+    }
+
+    /** One line per user: operations, rate and latency. */
+    public List<String> report() {
+        List<String> lines = new ArrayList<>();
+        for (UserStats u : stats.values()) lines.add(u.toString());
+        return lines;
+    }
+
+    private static final ThreadLocal<String> CURRENT_USER = new ThreadLocal<>();
+
+    /** User whose operation is running on this thread (for audit records), or "system" outside one. */
+    public static String currentUser() {
+        String user = CURRENT_USER.get();
+        return user != null ? user : "system";
+    }
+
+    public final class Session {
+        private final String token;
+        private final String username;
+        private final UserStats userStats;
+        private volatile boolean open = true;
+        private volatile long lastActive = System.currentTimeMillis();
+
+        private Session(String token, String username, UserStats userStats) {
+            this.token = token;
+            this.username = username;
+            this.userStats = userStats;
+        }
+
+        public String getToken() { return token; }
+        public String getUsername() { return username; }
+
+        public boolean isValid() {
+            return open && (idleTimeoutMillis == 0 || System.currentTimeMillis() - lastActive <= idleTimeoutMillis);
+        }
+
+        /** Runs {@code op} as this user, recording its latency; throws {@link SessionExpiredException}, without running it, if the session has ended. */
+        public <T> T call(String opName, Supplier<T> op) {
+            if (!isValid()) {
+                sessions.remove(token);
+                throw new SessionExpiredException("Session for " + username + " has expired, please log in again");
+            }
+            String outer = CURRENT_USER.get();
+            CURRENT_USER.set(username);
+            long start = System.nanoTime();
+            try {
+                return op.get();
+            } finally {
+                long now = System.nanoTime();
+                CURRENT_USER.set(outer);
+                userStats.record(opName, now - start);
+                lastActive = System.currentTimeMillis();
+            }
+        }
+
+        public void run(String opName, Runnable op) {
+            call(opName, () -> {
+                op.run();
+                return null;
+            });
+        }
+    }
+
+    /** The session was logged out or sat idle too long; log in again to continue. */
+    public static final class SessionExpiredException extends IllegalStateException {
+        private static final long serialVersionUID = 1L;
+
+        SessionExpiredException(String message) {
+            super(message);
+        }
+    }
+
+    private static final class UserStats {
+        private final String username;
+        private final long since = System.nanoTime();
+        private final LongAdder operations = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final Map<String, LongAdder> byOperation = new ConcurrentHashMap<>();
+
+        UserStats(String username) {
+            this.username = username;
+        }
+
+        void record(String opName, long nanos) {
+            operations.increment();
+            byOperation.computeIfAbsent(opName, k -> new LongAdder()).increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        @Override
+        public String toString() {
+            long ops = operations.sum();
+            double seconds = Math.max(1e-9, (System.nanoTime() - since) / 1e9);
+            double avgMicros = ops == 0 ? 0 : totalNanos.sum() / 1e3 / ops;
+            return String.format("%s: %d ops, %.2f ops/s, avg %.1f us, max %.1f us %s",
+                    username, ops, ops / seconds, avgMicros, maxNanos.get() / 1e3, byOperation);
+        }
+    }
+}
@@ -0,0 +1,250 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One partition of the patient registry, run as its own process:
+ * {@code java ShardNode <port>}.
+ *
+ * A node holds only the patients the {@link ShardRouter} assigns to it, plus a full copy of
+ * the (small) doctor list so it can resolve assignments locally. Requests arrive over a
+ * socket, one connection per router thread. State is kept in a {@link HospitalService}
+ * (without archive) and saved to {@code shard-<port>.ser}; its mutations are audited, as the
+ * logged-in operator, under {@code <hms.audit.dir>/shard-<port>} so nodes sharing a directory
+ * never append to the same file.
+ *
+ * The node listens on loopback unless {@code hms.shard.bindAddress} says otherwise, only
+ * deserializes {@link Request}s, and serves nothing until the connection has logged in (or
+ * presented the token of an earlier login) against the operators in {@code users.properties};
+ * every request then runs in that {@link SessionManager} session. The router stamps the node
+ * with the cluster layout it was routed with ({@code shard-<port>.layout}) so a router with a
+ * different node list can't silently misroute (see {@link ShardRouter}).
+ */
+public class ShardNode {
+    private static final Logger LOGGER = Logger.getLogger(ShardNode.class.getName());
+
+    private final File dataFile;
+    private final File layoutFile;
+    private final SessionManager sessions;
+    private final HospitalService service;
+
+    public ShardNode(File dataFile, File layoutFile, SessionManager sessions, AuditLog audit) {
+        this.dataFile = dataFile;
+        this.layoutFile = layoutFile;
+        this.sessions = sessions;
+        this.service = new HospitalService(null, audit);
+    }
+
+    void load() throws IOException, ClassNotFoundException {
+        service.load(dataFile);
+        LOGGER.info("Loaded " + service.patients().snapshot().size() + " patients from " + dataFile);
+    }
+
+    void save() throws IOException {
+        service.save(dataFile);
+    }
+
+    Serializable handle(Request r) throws IOException {
+        switch (r.kind) {
+            case ADD_DOCTOR:
+                // False for a doctor already present, so the router can safely repeat a partial add
+                return service.addDoctor(new Doctor(r.args[0], r.args[1], r.args[2]));
+            case ADD_PATIENT:
+                return service.addPatient(new Patient(r.args[0], r.args[1], r.args[2]));
+            case ASSIGN:
+                return service.assignDoctor(r.args[0], r.args[1]).isPresent();
+            case BILL:
+                return service.bill(r.args[0], r.amount).map(Patient::getOutstandingBill).orElse(null);
+            case FIND:
+                return service.findPatient(r.args[0]).orElse(null);
+            case BY_DEPARTMENT:
+                return new ArrayList<>(service.patientsInDepartment(r.args[0]));
+            case STATS: {
+                Stats s = new Stats();
+                for (Patient p : service.patients().snapshot().values()) s.add(p);
+                return s;
+            }
+            case SAVE:
+                save();
+                return Boolean.TRUE;
+            case ALL_DOCTORS:
+                return new ArrayList<>(service.doctors().snapshot().values());
+            case ALL_PATIENTS:
+                return new ArrayList<>(service.patients().snapshot().values());
+            case HISTORY:
+                return new ArrayList<>(service.history().forPatient(r.args[0]));
+            case PUT_PATIENT:
+                // A move between shards, not an admission: no new ADMISSION event
+                service.migrateIn(new Patient(r.args[0], r.args[1], r.args[2], r.args[3], r.amount), r.events);
+                return Boolean.TRUE;
+            case REMOVE_PATIENTS:
+                return service.migrateOut(List.of(r.args));
+            case LAYOUT:
+                return layoutFile.exists() ? new String(Files.readAllBytes(layoutFile.toPath()), StandardCharsets.UTF_8) : null;
+            case SET_LAYOUT:
+                Files.write(layoutFile.toPath(), r.args[0].getBytes(StandardCharsets.UTF_8));
+                return Boolean.TRUE;
+            default:
+                throw new IllegalArgumentException("Unknown request " + r.kind);
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket;
+             ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+            out.flush();
+            ObjectInputStream in = RemoteAccess.objectInput(new BufferedInputStream(s.getInputStream()), Request.class, Request.Kind.class,
+                    ArrayList.class, VisitEvent.class, VisitEvent.Type.class);
+            SessionManager.Session session = null;
+            while (true) {
+                Request r = (Request) in.readObject();
+                Serializable result;
+                if (r.kind == Request.Kind.LOGIN || r.kind == Request.Kind.RESUME) {
+                    Optional<SessionManager.Session> opened = r.kind == Request.Kind.LOGIN
+                            ? sessions.login(r.args[0], r.args[1].toCharArray())
+                            : sessions.find(r.args[0]);
+                    session = opened.orElse(null);
+                    if (session == null) LOGGER.warning("Rejected " + r.kind + " from " + s.getRemoteSocketAddress());
+                    result = session != null ? session.getToken() : new RemoteFailure("Login failed", true);
+                } else if (session == null || !session.isValid()) {
+                    result = new RemoteFailure("Not logged in, or the session has expired", true);
+                } else {
+                    result = call(session, r);
+                }
+                out.writeObject(result);
+                out.reset();
+                out.flush();
+            }
+        } catch (EOFException e) {
+            // router closed the connection
+        } catch (IOException | ClassNotFoundException e) {
+            LOGGER.log(Level.INFO, "Connection from router closed", e);
+        }
+    }
+
+    private Serializable call(SessionManager.Session session, Request r) {
+        try {
+            return session.call(r.kind.name(), () -> {
+                try {
+                    return handle(r);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (SessionManager.SessionExpiredException e) {
+            // Expired between the check in serve() and here: the router logs in again
+            return new RemoteFailure(e.getMessage(), true);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Request " + r.kind + " failed", e);
+            return new RemoteFailure(e.toString(), false);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.out.println("Usage: java ShardNode <port>");
+            return;
+        }
+        int port = Integer.parseInt(args[0]);
+        SessionManager sessions = new SessionManager(new UserStore(new File(UserStore.DEFAULT_FILE)), Long.getLong("hms.session.idleTimeoutMs", 0L));
+        AuditLog audit = new AuditLog(new File(System.getProperty("hms.audit.dir", "audit"), "shard-" + port), 8192);
+        Runtime.getRuntime().addShutdownHook(new Thread(audit::close, "audit-shutdown"));
+        ShardNode node = new ShardNode(new File("shard-" + port + ".ser"), new File("shard-" + port + ".layout"), sessions, audit);
+        node.load();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                node.save();
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Failed to save shard on shutdown", e);
+            }
+        }));
+        InetAddress address = RemoteAccess.bindAddress("hms.shard.bindAddress");
+        try (ServerSocket server = new ServerSocket(port, 50, address)) {
+            LOGGER.info("Shard node listening on " + address.getHostAddress() + ":" + port);
+            while (true) {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                Thread t = new Thread(() -> node.serve(socket), "shard-conn-" + socket.getRemoteSocketAddress());
+                t.setDaemon(true);
+                t.start();
+            }
+        }
+    }
+
+    // -------------------- Wire protocol --------------------
+    static final class Request implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        enum Kind {
+            LOGIN, RESUME, ADD_DOCTOR, ADD_PATIENT, ASSIGN, BILL, FIND, BY_DEPARTMENT, STATS, SAVE,
+            ALL_DOCTORS, ALL_PATIENTS, HISTORY, PUT_PATIENT, REMOVE_PATIENTS, LAYOUT, SET_LAYOUT
+        }
+
+        final Kind kind;
+        final String[] args;
+        final double amount;
+        // The moved patient's visit history, for PUT_PATIENT
+        final ArrayList<VisitEvent> events;
+
+        Request(Kind kind, double amount, String... args) {
+            this(kind, amount, new ArrayList<>(), args);
+        }
+
+        Request(Kind kind, double amount, ArrayList<VisitEvent> events, String... args) {
+            this.kind = kind;
+            this.amount = amount;
+            this.events = events;
+            this.args = args;
+        }
+    }
+
+    static final class RemoteFailure implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final String message;
+        // The connection needs to log in again before anything else will be served
+        final boolean unauthenticated;
+
+        RemoteFailure(String message, boolean unauthenticated) {
+            this.message = message;
+            this.unauthenticated = unauthenticated;
+        }
+    }
+
+    /** Per-shard aggregates; merged by the router for census-wide analytics. */
+    static final class Stats implements Serializable {
+        private static final long serialVersionUID = 1L;
+        int patients;
+        int unassigned;
+        double outstanding;
+        final Map<String, Integer> byDepartment = new HashMap<>();
+
+        void add(Patient p) {
+            patients++;
+            if (p.getAssignedDoctorId() == null) unassigned++;
+            outstanding += p.getOutstandingBill();
+            byDepartment.merge(p.getDepartment(), 1, Integer::sum);
+        }
+
+        void merge(Stats other) {
+            patients += other.patients;
+            unassigned += other.unassigned;
+            outstanding += other.outstanding;
+            other.byDepartment.forEach((k, v) -> byDepartment.merge(k, v, Integer::sum));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d patients (%d unassigned), outstanding %.2f, by department %s", patients, unassigned, outstanding, byDepartment);
+        }
+    }
+}
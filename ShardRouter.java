@@ -0,0 +1,480 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Scanner;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * Routing layer in front of several {@link ShardNode} processes.
+ *
+ * Patients are partitioned either by patient ID or by department, using rendezvous hashing.
+ * Point operations (find, assign, bill) go straight to the owning shard; department searches
+ * and analytics are scattered to all relevant shards in parallel and the results merged.
+ * Doctors are small reference data and are copied to every shard.
+ *
+ * Nothing moves patients on its own, so the node list and partitioning (the layout) are fixed:
+ * each node remembers the layout it was last routed with, and the router refuses to start
+ * with a different one. {@code --rebalance} accepts a new layout after moving every patient to
+ * its new owner, which with rendezvous hashing is only those that now belong to an added
+ * node (or all of them, if the partitioning changed). Nodes can be added this way but not
+ * removed. Stop other routers before rebalancing.
+ *
+ * The router logs in to every node as an operator from {@code users.properties}.
+ *
+ * Command line: {@code java ShardRouter [--by-department] [--rebalance] [--user name] host:port host:port ...}
+ */
+public class ShardRouter implements Closeable {
+    public enum Partitioning { PATIENT_ID, DEPARTMENT }
+
+    private static final Logger LOGGER = Logger.getLogger(ShardRouter.class.getName());
+
+    private static final int CONNECTIONS_PER_NODE = 4;
+
+    private final List<NodeClient> nodes = new ArrayList<>();
+    private final Partitioning partitioning;
+    private final ExecutorService scatterPool;
+    // Department partitioning only: where each known patient lives, so point lookups needn't scatter
+    private final Map<String, Integer> directory = new ConcurrentHashMap<>();
+
+    /**
+     * Connects as {@code username} and checks the nodes were last routed with this layout; with
+     * {@code rebalance}, moves patients to their owners under this layout first instead.
+     */
+    public ShardRouter(List<String> addresses, Partitioning partitioning, String username, char[] password, boolean rebalance) {
+        for (String a : addresses) {
+            String[] hp = a.split(":");
+            nodes.add(new NodeClient(hp[0], Integer.parseInt(hp[1]), username, password));
+        }
+        this.partitioning = partitioning;
+        this.scatterPool = Executors.newFixedThreadPool(Math.max(2, nodes.size()), r -> {
+            Thread t = new Thread(r, "shard-scatter");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            checkLayout(rebalance);
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Adds the doctor to every shard. Shards that fail are retried; a shard that already has
+     * the doctor just answers false, so repeating an add that only partly went through is safe.
+     * Returns false if every shard already had the doctor.
+     *
+     * @throws IllegalStateException naming the shards that do and don't have the doctor, if some stayed unreachable
+     */
+    public boolean addDoctor(String id, String name, String dept) {
+        ShardNode.Request r = new ShardNode.Request(ShardNode.Request.Kind.ADD_DOCTOR, 0, id, name, dept);
+        Serializable[] results = new Serializable[nodes.size()];
+        RuntimeException failure = null;
+        for (int attempt = 0; attempt < 3; attempt++) {
+            List<Integer> missing = new ArrayList<>();
+            List<CompletableFuture<Serializable>> futures = new ArrayList<>();
+            for (int i = 0; i < results.length; i++) {
+                if (results[i] != null) continue;
+                NodeClient n = nodes.get(i);
+                missing.add(i);
+                futures.add(CompletableFuture.supplyAsync(() -> n.call(r), scatterPool));
+            }
+            if (missing.isEmpty()) break;
+            for (int k = 0; k < missing.size(); k++) {
+                try {
+                    results[missing.get(k)] = futures.get(k).join();
+                } catch (CompletionException e) {
+                    failure = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+                }
+            }
+        }
+        List<String> applied = new ArrayList<>();
+        List<String> missing = new ArrayList<>();
+        for (int i = 0; i < results.length; i++) (results[i] != null ? applied : missing).add(nodes.get(i).address());
+        if (!missing.isEmpty()) {
+            throw new IllegalStateException("Doctor " + id + " is on shards " + applied + " but not " + missing
+                    + " (" + failure.getMessage() + "); add it again to finish");
+        }
+        return Arrays.asList(results).contains(Boolean.TRUE);
+    }
+
+    public boolean addPatient(String id, String name, String dept) {
+        int shard;
+        if (partitioning == Partitioning.PATIENT_ID) {
+            shard = ownerOf(id);
+        } else {
+            if (locate(id).isPresent()) return false;
+            shard = ownerOf(dept.toLowerCase(Locale.ROOT));
+        }
+        boolean added = Boolean.TRUE.equals(nodes.get(shard).call(new ShardNode.Request(ShardNode.Request.Kind.ADD_PATIENT, 0, id, name, dept)));
+        if (added && partitioning == Partitioning.DEPARTMENT) directory.put(id, shard);
+        return added;
+    }
+
+    public Optional<Patient> findPatientById(String id) {
+        return locate(id).map(shard -> (Patient) nodes.get(shard).call(new ShardNode.Request(ShardNode.Request.Kind.FIND, 0, id)));
+    }
+
+    public boolean assignDoctor(String patientId, String doctorId) {
+        Optional<Integer> shard = locate(patientId);
+        return shard.isPresent() && Boolean.TRUE.equals(nodes.get(shard.get()).call(new ShardNode.Request(ShardNode.Request.Kind.ASSIGN, 0, patientId, doctorId)));
+    }
+
+    /** Adds to the patient's bill; returns the new outstanding total, or empty if there is no such patient. */
+    public Optional<Double> bill(String patientId, double amount) {
+        return locate(patientId).map(shard -> (Double) nodes.get(shard).call(new ShardNode.Request(ShardNode.Request.Kind.BILL, amount, patientId)));
+    }
+
+    @SuppressWarnings("unchecked")
+    public List<Patient> patientsInDepartment(String dept) {
+        ShardNode.Request r = new ShardNode.Request(ShardNode.Request.Kind.BY_DEPARTMENT, 0, dept);
+        if (partitioning == Partitioning.DEPARTMENT) {
+            return (List<Patient>) nodes.get(ownerOf(dept.toLowerCase(Locale.ROOT))).call(r);
+        }
+        List<Patient> result = new ArrayList<>();
+        for (Serializable part : scatter(n -> n.call(r))) result.addAll((List<Patient>) part);
+        return result;
+    }
+
+    public ShardNode.Stats stats() {
+        ShardNode.Stats total = new ShardNode.Stats();
+        for (Serializable s : scatter(n -> n.call(new ShardNode.Request(ShardNode.Request.Kind.STATS, 0)))) total.merge((ShardNode.Stats) s);
+        return total;
+    }
+
+    public void saveAll() {
+        scatter(n -> n.call(new ShardNode.Request(ShardNode.Request.Kind.SAVE, 0)));
+    }
+
+    public int shardCount() {
+        return nodes.size();
+    }
+
+    // -------------------- Layout --------------------
+    private String layout() {
+        Set<String> addresses = new TreeSet<>();
+        for (NodeClient n : nodes) addresses.add(n.address());
+        return partitioning + " " + String.join(",", addresses);
+    }
+
+    private void checkLayout(boolean rebalance) {
+        String layout = layout();
+        Set<String> previous = new HashSet<>();
+        for (Serializable s : scatter(n -> n.call(new ShardNode.Request(ShardNode.Request.Kind.LAYOUT, 0)))) {
+            if (s != null && !s.equals(layout)) previous.add((String) s);
+        }
+        if (!previous.isEmpty()) {
+            if (!rebalance) {
+                throw new IllegalStateException("Shards were last routed as " + previous + ", not [" + layout + "]; use --rebalance to move patients to the new layout");
+            }
+            Set<String> current = new HashSet<>(Arrays.asList(layout.substring(layout.indexOf(' ') + 1).split(",")));
+            for (String p : previous) {
+                for (String a : p.substring(p.indexOf(' ') + 1).split(",")) {
+                    if (!current.contains(a)) throw new IllegalStateException("Shard " + a + " was dropped from the layout; its patients would be lost");
+                }
+            }
+            rebalance();
+        }
+        scatter(n -> n.call(new ShardNode.Request(ShardNode.Request.Kind.SET_LAYOUT, 0, layout)));
+    }
+
+    // Copies doctors to shards that lack them, then moves each patient to its owner under this layout
+    @SuppressWarnings("unchecked")
+    private void rebalance() {
+        List<Serializable> doctorLists = scatter(n -> n.call(new ShardNode.Request(ShardNode.Request.Kind.ALL_DOCTORS, 0)));
+        for (List<Doctor> ds : (List<List<Doctor>>) (List<?>) doctorLists) {
+            for (Doctor d : ds) addDoctor(d.getDoctorId(), d.getName(), d.getDepartment());
+        }
+        int moved = 0;
+        for (int i = 0; i < nodes.size(); i++) {
+            List<Patient> ps = (List<Patient>) nodes.get(i).call(new ShardNode.Request(ShardNode.Request.Kind.ALL_PATIENTS, 0));
+            List<String> gone = new ArrayList<>();
+            for (Patient p : ps) {
+                int owner = partitioning == Partitioning.PATIENT_ID ? ownerOf(p.getPatientId()) : ownerOf(p.getDepartment().toLowerCase(Locale.ROOT));
+                if (owner == i) continue;
+                // Copy before removing: an interrupted rebalance leaves duplicates for the next run, never a lost patient.
+                // The history moves along, so the new shard doesn't take the move for an admission.
+                ArrayList<VisitEvent> events = (ArrayList<VisitEvent>) nodes.get(i).call(new ShardNode.Request(ShardNode.Request.Kind.HISTORY, 0, p.getPatientId()));
+                nodes.get(owner).call(new ShardNode.Request(ShardNode.Request.Kind.PUT_PATIENT, p.getOutstandingBill(), events,
+                        p.getPatientId(), p.getName(), p.getDepartment(), p.getAssignedDoctorId()));
+                gone.add(p.getPatientId());
+            }
+            // One removal per node, as dropping history rewrites it
+            if (!gone.isEmpty()) nodes.get(i).call(new ShardNode.Request(ShardNode.Request.Kind.REMOVE_PATIENTS, 0, gone.toArray(new String[0])));
+            moved += gone.size();
+        }
+        directory.clear();
+        saveAll();
+        LOGGER.info("Rebalanced to [" + layout() + "]: moved " + moved + " patients");
+    }
+
+    private Optional<Integer> locate(String patientId) {
+        if (partitioning == Partitioning.PATIENT_ID) return Optional.of(ownerOf(patientId));
+        Integer known = directory.get(patientId);
+        if (known != null) return Optional.of(known);
+        // Unknown to this router (e.g. added before it started): ask every shard once and remember
+        List<Serializable> found = scatter(n -> n.call(new ShardNode.Request(ShardNode.Request.Kind.FIND, 0, patientId)));
+        for (int i = 0; i < found.size(); i++) {
+            if (found.get(i) != null) {
+                directory.put(patientId, i);
+                return Optional.of(i);
+            }
+        }
+        return Optional.empty();
+    }
+
+    // Rendezvous (highest random weight) hashing over the node list
+    private int ownerOf(String key) {
+        long keyHash = fnv(key);
+        int best = 0;
+        long bestScore = Long.MIN_VALUE;
+        for (int i = 0; i < nodes.size(); i++) {
+            long score = mix(keyHash ^ nodes.get(i).seed);
+            if (score > bestScore) {
+                bestScore = score;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    private <T> List<T> scatter(Function<NodeClient, T> call) {
+        List<CompletableFuture<T>> futures = new ArrayList<>(nodes.size());
+        for (NodeClient n : nodes) futures.add(CompletableFuture.supplyAsync(() -> call.apply(n), scatterPool));
+        List<T> results = new ArrayList<>(nodes.size());
+        try {
+            for (CompletableFuture<T> f : futures) results.add(f.join());
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw e;
+        }
+        return results;
+    }
+
+    private static long fnv(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b;
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return z ^ (z >>> 33);
+    }
+
+    @Override
+    public void close() {
+        scatterPool.shutdownNow();
+        for (NodeClient n : nodes) n.close();
+    }
+
+    // Small pool of request/response connections to one node, all in one session
+    private static final class NodeClient {
+        private final String host;
+        private final int port;
+        private final long seed;
+        private final String username;
+        private final char[] password;
+        private final BlockingQueue<Connection> idle = new ArrayBlockingQueue<>(CONNECTIONS_PER_NODE);
+        private volatile String token;
+
+        NodeClient(String host, int port, String username, char[] password) {
+            this.host = host;
+            this.port = port;
+            this.seed = fnv(host + ":" + port);
+            this.username = username;
+            this.password = password;
+        }
+
+        String address() {
+            return host + ":" + port;
+        }
+
+        Serializable call(ShardNode.Request request) {
+            Object result = exchange(request);
+            if (result instanceof ShardNode.RemoteFailure && ((ShardNode.RemoteFailure) result).unauthenticated) {
+                // The session expired on the node: log in afresh and try once more
+                token = null;
+                close();
+                result = exchange(request);
+            }
+            if (result instanceof ShardNode.RemoteFailure) {
+                throw new IllegalStateException("Shard " + address() + " failed: " + ((ShardNode.RemoteFailure) result).message);
+            }
+            return (Serializable) result;
+        }
+
+        private Object exchange(ShardNode.Request request) {
+            Connection c = idle.poll();
+            try {
+                if (c == null) c = open();
+                Object result = c.send(request);
+                if (!idle.offer(c)) c.close();
+                return result;
+            } catch (IOException | ClassNotFoundException e) {
+                if (c != null) c.close();
+                throw new UncheckedIOException("Shard " + address() + " unavailable",
+                        e instanceof IOException ? (IOException) e : new IOException(e));
+            }
+        }
+
+        // A new connection joins the existing session by token, logging in only when there is none
+        private Connection open() throws IOException, ClassNotFoundException {
+            Connection c = new Connection(new Socket(host, port));
+            String t = token;
+            Object reply = t == null ? null : c.send(new ShardNode.Request(ShardNode.Request.Kind.RESUME, 0, t));
+            if (!(reply instanceof String)) {
+                reply = c.send(new ShardNode.Request(ShardNode.Request.Kind.LOGIN, 0, username, new String(password)));
+                if (!(reply instanceof String)) {
+                    c.close();
+                    throw new IllegalStateException("Shard " + address() + " rejected the login for " + username);
+                }
+                token = (String) reply;
+            }
+            return c;
+        }
+
+        void close() {
+            Connection c;
+            while ((c = idle.poll()) != null) c.close();
+        }
+    }
+
+    private static final class Connection {
+        private final Socket socket;
+        private final ObjectOutputStream out;
+        private final ObjectInputStream in;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            this.out = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.flush();
+            this.in = RemoteAccess.objectInput(new BufferedInputStream(socket.getInputStream()), Patient.class, Doctor.class,
+                    ArrayList.class, HashMap.class, Map.Entry.class, ShardNode.Stats.class, ShardNode.RemoteFailure.class,
+                    VisitEvent.class, VisitEvent.Type.class);
+        }
+
+        Object send(ShardNode.Request request) throws IOException, ClassNotFoundException {
+            out.writeObject(request);
+            out.reset();
+            out.flush();
+            return in.readObject();
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // nothing left to do
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        List<String> addresses = new ArrayList<>();
+        Partitioning partitioning = Partitioning.PATIENT_ID;
+        boolean rebalance = false;
+        String user = "admin";
+        for (int i = 0; i < args.length; i++) {
+            if ("--by-department".equals(args[i])) partitioning = Partitioning.DEPARTMENT;
+            else if ("--rebalance".equals(args[i])) rebalance = true;
+            else if ("--user".equals(args[i]) && i + 1 < args.length) user = args[++i];
+            else addresses.add(args[i]);
+        }
+        if (addresses.isEmpty()) {
+            System.out.println("Usage: java ShardRouter [--by-department] [--rebalance] [--user name] host:port host:port ...");
+            return;
+        }
+        char[] password = readPassword(user);
+        if (password == null) return;
+        ShardRouter connected;
+        try {
+            connected = new ShardRouter(addresses, partitioning, user, password, rebalance);
+        } catch (UncheckedIOException | IllegalStateException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
+        try (ShardRouter router = connected; Scanner sc = new Scanner(System.in)) {
+            System.out.println("Routing across " + router.shardCount() + " shards by " + partitioning);
+            System.out.println("Commands: add-doctor <id> <name> <dept> | add-patient <id> <name> <dept> | assign <pid> <did> | bill <pid> <amount> | find <pid> | dept <name> | stats | save | quit");
+            while (sc.hasNextLine()) {
+                String[] cmd = sc.nextLine().trim().split("\\s+");
+                try {
+                    switch (cmd[0]) {
+                        case "add-doctor":
+                            System.out.println(router.addDoctor(cmd[1], cmd[2], cmd[3]) ? "Doctor added" : "Doctor already exists");
+                            break;
+                        case "add-patient":
+                            System.out.println(router.addPatient(cmd[1], cmd[2], cmd[3]) ? "Patient added" : "Patient already exists");
+                            break;
+                        case "assign":
+                            System.out.println(router.assignDoctor(cmd[1], cmd[2]) ? "Doctor assigned" : "Invalid Patient ID or Doctor ID!");
+                            break;
+                        case "bill":
+                            System.out.println(router.bill(cmd[1], Double.parseDouble(cmd[2])).map(t -> "Outstanding: " + t).orElse("Patient not found!"));
+                            break;
+                        case "find":
+                            System.out.println(router.findPatientById(cmd[1]).map(ShardRouter::describe).orElse("Patient not found!"));
+                            break;
+                        case "dept":
+                            for (Patient p : router.patientsInDepartment(cmd[1])) System.out.println(describe(p));
+                            break;
+                        case "stats":
+                            System.out.println(router.stats());
+                            break;
+                        case "save":
+                            router.saveAll();
+                            System.out.println("All shards saved");
+                            break;
+                        case "quit":
+                            return;
+                        default:
+                            System.out.println("Unknown command");
+                    }
+                } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                    System.out.println("Invalid arguments");
+                } catch (UncheckedIOException | IllegalStateException e) {
+                    System.out.println(e.getMessage());
+                }
+            }
+        }
+    }
+
+    /** Prompts for the operator's password on the console; null (after saying why) if there is none. */
+    static char[] readPassword(String user) {
+        Console console = System.console();
+        if (console == null) {
+            System.out.println("No console available to read the password.");
+            return null;
+        }
+        return console.readPassword("Password for %s: ", user);
+    }
+
+    private static String describe(Patient p) {
+        return p.getPatientId() + "  " + p.getName() + "  " + p.getDepartment() + "  doctor: " + (p.getAssignedDoctorId() == null ? "-" : p.getAssignedDoctorId())
+                + String.format("  bill: %.2f", p.getOutstandingBill());
+    }
+}
@@ -0,0 +1,120 @@
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+/**
+ * Compares save time, load time and file size of the block codecs on a synthetic census:
+ * {@code java StorageBenchmark [--patients 100000] [--rounds 5]}.
+ *
+ * "plain" is the version 2 payload encoding, the baseline the others are measured against.
+ * Each variant is saved and loaded once to warm up, then {@code rounds} times; medians are
+ * reported. Loading decodes every block on one thread, so the times compare codec cost rather
+ * than HospitalService's parallel loader.
+ */
+public class StorageBenchmark {
+    private static final String[] DEPARTMENTS = {"Cardiology", "Neurology", "Oncology", "Pediatrics", "Orthopedics", "Radiology", "Emergency", "Dermatology"};
+    private static final String[] NAMES = {"Alice", "Bilal", "Chen", "Dana", "Emeka", "Farah", "Goran", "Hana", "Ivan", "Jia", "Kofi", "Lena", "Mateo", "Nia", "Omar", "Priya"};
+
+    public static void main(String[] args) throws Exception {
+        int patientCount = 100_000;
+        int rounds = 5;
+        try {
+            for (int i = 0; i < args.length; i += 2) {
+                switch (args[i]) {
+                    case "--patients": patientCount = Integer.parseInt(args[i + 1]); break;
+                    case "--rounds": rounds = Integer.parseInt(args[i + 1]); break;
+                    default: throw new IllegalArgumentException(args[i]);
+                }
+            }
+        } catch (RuntimeException e) {
+            System.out.println("Usage: java StorageBenchmark [--patients n] [--rounds n]");
+            return;
+        }
+
+        Random random = new Random(42);
+        List<Doctor> doctors = new ArrayList<>();
+        for (int i = 0; i < Math.max(1, patientCount / 50); i++) {
+            doctors.add(new Doctor("D" + i, "Dr. " + NAMES[random.nextInt(NAMES.length)] + " " + i, DEPARTMENTS[random.nextInt(DEPARTMENTS.length)]));
+        }
+        List<Patient> patients = new ArrayList<>();
+        for (int i = 0; i < patientCount; i++) {
+            String doctorId = random.nextInt(4) == 0 ? null : doctors.get(random.nextInt(doctors.size())).getDoctorId();
+            double bill = random.nextInt(3) == 0 ? 0 : Math.round(random.nextDouble() * 500_000) / 100.0;
+            patients.add(new Patient("P" + i, NAMES[random.nextInt(NAMES.length)] + " " + NAMES[random.nextInt(NAMES.length)],
+                    DEPARTMENTS[random.nextInt(DEPARTMENTS.length)], doctorId, bill));
+        }
+
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(256);
+        SecretKey key = generator.generateKey();
+        BlockCodecs.Codec deflate = new BlockCodecs.DeflateCodec(Deflater.BEST_SPEED);
+        BlockCodecs.Codec aes = new BlockCodecs.AesGcmCodec(key);
+        List<BlockCodecs.Codec> all = Arrays.asList(deflate, aes);
+        Map<String, BlockCodecs> variants = new LinkedHashMap<>();
+        variants.put("plain", new BlockCodecs(all, List.of()));
+        variants.put("deflate", new BlockCodecs(all, List.of(deflate)));
+        variants.put("aes-gcm", new BlockCodecs(all, List.of(aes)));
+        variants.put("deflate+aes-gcm", new BlockCodecs(all, List.of(deflate, aes)));
+
+        System.out.printf("%d doctors, %d patients, %d records per block, %d rounds%n",
+                doctors.size(), patients.size(), HospitalService.RECORDS_PER_BLOCK, rounds);
+        System.out.printf("%-16s %12s %8s %10s %10s%n", "codecs", "bytes", "size", "save ms", "load ms");
+        File dir = Files.createTempDirectory("storage-bench").toFile();
+        long plainSize = 0;
+        try {
+            for (Map.Entry<String, BlockCodecs> v : variants.entrySet()) {
+                File file = new File(dir, v.getKey() + ".dat");
+                long[] saves = new long[rounds];
+                long[] loads = new long[rounds];
+                for (int r = -1; r < rounds; r++) {
+                    long start = System.nanoTime();
+                    BlockFile.writeAtomically(file, v.getValue(), out -> {
+                        out.writeAll(HospitalService.DOCTOR_BLOCK, doctors, HospitalService.RECORDS_PER_BLOCK);
+                        out.writeAll(HospitalService.PATIENT_BLOCK, patients, HospitalService.RECORDS_PER_BLOCK);
+                    });
+                    long saved = System.nanoTime();
+                    int records = load(file, v.getValue());
+                    long loaded = System.nanoTime();
+                    if (records != doctors.size() + patients.size()) throw new IllegalStateException(v.getKey() + " read back " + records + " records");
+                    if (r >= 0) {
+                        saves[r] = saved - start;
+                        loads[r] = loaded - saved;
+                    }
+                }
+                long size = file.length();
+                if (plainSize == 0) plainSize = size;
+                System.out.printf("%-16s %12d %7.1f%% %10.1f %10.1f%n", v.getKey(), size, 100.0 * size / plainSize,
+                        median(saves) / 1e6, median(loads) / 1e6);
+            }
+        } finally {
+            File[] files = dir.listFiles();
+            if (files != null) for (File f : files) f.delete();
+            dir.delete();
+        }
+    }
+
+    private static int load(File file, BlockCodecs codecs) throws IOException, ClassNotFoundException {
+        int records = 0;
+        try (BlockFile.Reader in = new BlockFile.Reader(new FileInputStream(file), codecs)) {
+            BlockFile.Block b;
+            while ((b = in.next()) != null) records += b.decode().size();
+        }
+        return records;
+    }
+
+    private static long median(long[] samples) {
+        long[] sorted = samples.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
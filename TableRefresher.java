@@ -0,0 +1,170 @@
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.table.DefaultTableModel;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Keeps a {@link DefaultTableModel} in step with a keyed store without rebuilding it.
+ *
+ * Callers on any thread report which keys changed; the keys are collected in a set, so a
+ * burst of edits to one record costs one row update. The first change after a flush starts a
+ * one-frame timer, and when it fires (on the EDT) each pending key is looked up once and turned
+ * into the smallest table change: a cell update only where a value differs, an appended row for
+ * a new record, a deleted row for one that is gone or no longer matches the filter. Inserts are
+ * announced as one range and large deletions compact the rows in a single pass. The record's
+ * key must be shown in column 0.
+ */
+public class TableRefresher<V> {
+    public static final int FRAME_MS = 16;
+    // Above this many deletions in one flush, compact the rows in one pass instead of one by one
+    private static final int BULK_DELETE = 16;
+
+    private final DefaultTableModel model;
+    private final Function<String, Optional<V>> lookup;
+    private final Supplier<Collection<V>> all;
+    private final Function<V, String> keyOf;
+    private final Function<V, Object[]> toRow;
+    // In arrival order, so new records are appended in the order they were added
+    private final Set<String> pending = new LinkedHashSet<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Timer timer;
+    private Runnable onApplied = () -> { };
+
+    // EDT only
+    private final Map<String, Integer> rowOf = new HashMap<>();
+    private Predicate<V> filter = v -> true;
+
+    /**
+     * @param lookup current record for a key, empty once it is gone
+     * @param all    every current record, used when the filter changes
+     */
+    public TableRefresher(DefaultTableModel model, Function<String, Optional<V>> lookup, Supplier<Collection<V>> all,
+                          Function<V, String> keyOf, Function<V, Object[]> toRow) {
+        this.model = model;
+        this.lookup = lookup;
+        this.all = all;
+        this.keyOf = keyOf;
+        this.toRow = toRow;
+        this.timer = new Timer(FRAME_MS, e -> flush());
+        timer.setRepeats(false);
+    }
+
+    /** Runs on the EDT after every flush, e.g. to update a record count. */
+    public void setOnApplied(Runnable onApplied) {
+        this.onApplied = onApplied;
+    }
+
+    /** Records that the record with this key was added, changed or removed. Any thread. */
+    public void changed(String key) {
+        synchronized (pending) {
+            pending.add(key);
+        }
+        if (scheduled.compareAndSet(false, true)) SwingUtilities.invokeLater(timer::restart);
+    }
+
+    public void changedAll(Collection<String> keys) {
+        if (keys.isEmpty()) return;
+        synchronized (pending) {
+            pending.addAll(keys);
+        }
+        if (scheduled.compareAndSet(false, true)) SwingUtilities.invokeLater(timer::restart);
+    }
+
+    /** Shows only records matching {@code filter}, touching only the rows that differ. EDT only. */
+    public void setFilter(Predicate<V> filter) {
+        setFilter(filter, all.get());
+    }
+
+    /**
+     * As {@link #setFilter(Predicate)}, when the caller already has the records that match
+     * (e.g. from an indexed query), so the rest need not be tested. New rows follow their order.
+     */
+    public void setFilter(Predicate<V> filter, Collection<V> matching) {
+        this.filter = filter;
+        Set<String> keys = new LinkedHashSet<>(rowOf.keySet());
+        for (V v : matching) keys.add(keyOf.apply(v));
+        apply(keys);
+    }
+
+    /**
+     * As {@link #setFilter(Predicate, Collection)}, but rebuilds the rows in the order of
+     * {@code matching}, e.g. a sorted query. Records that match later are still appended. EDT only.
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    public void setFilterInOrder(Predicate<V> filter, List<V> matching) {
+        this.filter = filter;
+        Vector<Vector> data = model.getDataVector();
+        data.clear();
+        rowOf.clear();
+        for (V v : matching) {
+            if (!filter.test(v) || rowOf.containsKey(keyOf.apply(v))) continue;
+            rowOf.put(keyOf.apply(v), data.size());
+            data.add(new Vector<>(Arrays.asList(toRow.apply(v))));
+        }
+        model.fireTableDataChanged();
+        onApplied.run();
+    }
+
+    private void flush() {
+        scheduled.set(false);
+        List<String> keys;
+        synchronized (pending) {
+            keys = new ArrayList<>(pending);
+            pending.clear();
+        }
+        if (!keys.isEmpty()) apply(keys);
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private void apply(Collection<String> keys) {
+        Vector<Vector> data = model.getDataVector();
+        int firstInserted = data.size();
+        List<Integer> deletions = new ArrayList<>();
+        for (String key : keys) {
+            Optional<V> v = lookup.apply(key).filter(filter);
+            Integer row = rowOf.get(key);
+            if (v.isPresent()) {
+                Object[] values = toRow.apply(v.get());
+                if (row == null) {
+                    rowOf.put(key, data.size());
+                    data.add(new Vector<>(Arrays.asList(values)));
+                } else {
+                    for (int c = 0; c < values.length; c++) {
+                        if (!Objects.equals(model.getValueAt(row, c), values[c])) model.setValueAt(values[c], row, c);
+                    }
+                }
+            } else if (row != null) {
+                deletions.add(row);
+                rowOf.remove(key);
+            }
+        }
+        if (data.size() > firstInserted) model.fireTableRowsInserted(firstInserted, data.size() - 1);
+        if (!deletions.isEmpty()) delete(deletions);
+        onApplied.run();
+    }
+
+    @SuppressWarnings("rawtypes")
+    private void delete(List<Integer> rows) {
+        if (rows.size() <= BULK_DELETE) {
+            rows.sort(Collections.reverseOrder());
+            for (int row : rows) model.removeRow(row);
+        } else {
+            Vector<Vector> data = model.getDataVector();
+            boolean[] drop = new boolean[data.size()];
+            for (int row : rows) drop[row] = true;
+            int kept = 0;
+            for (int i = 0; i < data.size(); i++) {
+                if (!drop[i]) data.set(kept++, data.get(i));
+            }
+            data.setSize(kept);
+            model.fireTableDataChanged();
+        }
+        // Deletions shift the rows below them
+        rowOf.clear();
+        for (int i = 0; i < model.getRowCount(); i++) rowOf.put((String) model.getValueAt(i, 0), i);
+    }
+}
@@ -0,0 +1,130 @@
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.io.*;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Properties;
+
+/**
+ * Operator accounts with salted PBKDF2 password hashes, kept in a properties file.
+ *
+ * Each entry is {@code username=iterations:salt:hash} (Base64); a file with any other kind of
+ * entry is refused when it is opened, naming the user. When the file does not exist
+ * yet it is created with the original admin account so existing installs keep working;
+ * change that password with {@code java UserStore passwd admin}.
+ */
+public class UserStore {
+    public static final String DEFAULT_FILE = "users.properties";
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int ITERATIONS = 210_000;
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+
+    private final File file;
+    private final Properties users = new Properties();
+    private final SecureRandom random = new SecureRandom();
+
+    public UserStore(File file) throws IOException {
+        this(file, true);
+    }
+
+    // The passwd tool opens the file unchecked, so it can repair a malformed entry
+    private UserStore(File file, boolean validate) throws IOException {
+        this.file = file;
+        if (file.exists()) {
+            try (InputStream in = new FileInputStream(file)) {
+                users.load(in);
+            }
+            for (String username : users.stringPropertyNames()) {
+                if (validate && !isValidEntry(users.getProperty(username))) {
+                    throw new IOException(file + ": entry for user '" + username + "' is not iterations:salt:hash; reset it with 'java UserStore passwd " + username + "'");
+                }
+            }
+        } else {
+            setPassword("admin", "12345".toCharArray());
+        }
+    }
+
+    /** Checks the password; deliberately slow, so callers should cache the result (see {@link SessionManager}). */
+    public boolean authenticate(String username, char[] password) {
+        String entry;
+        synchronized (users) {
+            entry = users.getProperty(username);
+        }
+        if (entry == null) {
+            // Burn the same time as a real check so unknown users can't be told apart
+            hash(password, new byte[SALT_BYTES], ITERATIONS);
+            return false;
+        }
+        String[] parts = entry.split(":");
+        Base64.Decoder b64 = Base64.getDecoder();
+        byte[] expected = b64.decode(parts[2]);
+        byte[] actual = hash(password, b64.decode(parts[1]), Integer.parseInt(parts[0]));
+        return MessageDigest.isEqual(expected, actual);
+    }
+
+    public void setPassword(String username, char[] password) throws IOException {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        Base64.Encoder b64 = Base64.getEncoder();
+        String entry = ITERATIONS + ":" + b64.encodeToString(salt) + ":" + b64.encodeToString(hash(password, salt, ITERATIONS));
+        synchronized (users) {
+            users.setProperty(username, entry);
+            try (OutputStream out = new FileOutputStream(file)) {
+                users.store(out, "Hospital Management System operators");
+            }
+        }
+    }
+
+    public boolean exists(String username) {
+        synchronized (users) {
+            return users.containsKey(username);
+        }
+    }
+
+    private static boolean isValidEntry(String entry) {
+        String[] parts = entry.split(":", -1);
+        if (parts.length != 3) return false;
+        try {
+            Base64.Decoder b64 = Base64.getDecoder();
+            return Integer.parseInt(parts[0]) > 0 && b64.decode(parts[1]).length > 0 && b64.decode(parts[2]).length == HASH_BITS / 8;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static byte[] hash(char[] password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " not available", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    // Small admin tool: java UserStore passwd <username>
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2 || !"passwd".equals(args[0])) {
+            System.out.println("Usage: java UserStore passwd <username>");
+            return;
+        }
+        Console console = System.console();
+        if (console == null) {
+            System.out.println("No console available to read the password.");
+            return;
+        }
+        char[] pw = console.readPassword("New password for %s: ", args[1]);
+        char[] again = console.readPassword("Repeat password: ");
+        if (pw == null || pw.length == 0 || !Arrays.equals(pw, again)) {
+            System.out.println("Passwords empty or do not match.");
+            return;
+        }
+        new UserStore(new File(DEFAULT_FILE), false).setPassword(args[1], pw);
+        System.out.println("Password set for " + args[1]);
+    }
+}
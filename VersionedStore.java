@@ -0,0 +1,223 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+/**
+ * Copy-on-write store of immutable records keyed by ID.
+ *
+ * Readers (saves, exports, table refreshes) grab the current {@link Snapshot} in O(1)
+ * and can walk it for as long as they like without holding any lock. Writers serialize
+ * on a private lock, build the next version and publish it with a single volatile write,
+ * so a long read never stalls an add/assign dialog. Each record's slot in the array is
+ * indexed by key, so a write copies the array once but never searches it; batches
+ * ({@link #addAll}, {@link #removeAll}) copy it once for the whole batch.
+ *
+ * Secondary {@link Index}es map an attribute to the keys of the records that have it and are
+ * kept in step by the writers; like {@link #get}, they reflect the latest version.
+ */
+public class VersionedStore<V> {
+    private final Function<V, String> keyOf;
+    private final Object writeLock = new Object();
+    private final Map<String, V> latest = new ConcurrentHashMap<>();
+    // Slot of each key in current.values; guarded by writeLock
+    private final Map<String, Integer> positions = new HashMap<>();
+    private volatile Snapshot<V> current = new Snapshot<>(0L, new Object[0]);
+    private final List<Index<V>> indexes = new CopyOnWriteArrayList<>();
+
+    public VersionedStore(Function<V, String> keyOf) {
+        this.keyOf = keyOf;
+    }
+
+    /** Returns the latest published version. Never blocks. */
+    public Snapshot<V> snapshot() {
+        return current;
+    }
+
+    /** Point lookup against the latest version. Never blocks. */
+    public Optional<V> get(String key) {
+        return Optional.ofNullable(latest.get(key));
+    }
+
+    /** Creates an index on {@code attribute} (which may be null for some records) over the current and future records. */
+    public Index<V> addIndex(Function<V, String> attribute) {
+        synchronized (writeLock) {
+            Index<V> index = new Index<>(attribute, keyOf);
+            for (V v : current.values()) index.put(v);
+            indexes.add(index);
+            return index;
+        }
+    }
+
+    /** Adds a new record; returns false if one with the same key already exists. */
+    public boolean add(V value) {
+        String key = keyOf.apply(value);
+        synchronized (writeLock) {
+            if (latest.containsKey(key)) return false;
+            Object[] prev = current.values;
+            Object[] next = Arrays.copyOf(prev, prev.length + 1);
+            next[prev.length] = value;
+            latest.put(key, value);
+            positions.put(key, prev.length);
+            for (Index<V> index : indexes) index.put(value);
+            publish(next);
+            return true;
+        }
+    }
+
+    /** Appends a batch in one version; records whose key already exists are skipped. Returns those added. */
+    public List<V> addAll(Collection<? extends V> values) {
+        synchronized (writeLock) {
+            List<V> added = new ArrayList<>(values.size());
+            for (V v : values) {
+                if (latest.putIfAbsent(keyOf.apply(v), v) == null) added.add(v);
+            }
+            for (Index<V> index : indexes) {
+                for (V v : added) index.put(v);
+            }
+            if (!added.isEmpty()) {
+                Object[] prev = current.values;
+                Object[] next = Arrays.copyOf(prev, prev.length + added.size());
+                for (int i = 0; i < added.size(); i++) {
+                    V v = added.get(i);
+                    next[prev.length + i] = v;
+                    positions.put(keyOf.apply(v), prev.length + i);
+                }
+                publish(next);
+            }
+            return added;
+        }
+    }
+
+    /** Replaces the record stored under {@code key} with {@code fn(old)}; empty if there was none. */
+    public Optional<V> update(String key, UnaryOperator<V> fn) {
+        synchronized (writeLock) {
+            V old = latest.get(key);
+            if (old == null) return Optional.empty();
+            V updated = fn.apply(old);
+            Object[] next = current.values.clone();
+            next[positions.get(key)] = updated;
+            latest.put(key, updated);
+            for (Index<V> index : indexes) {
+                index.remove(old);
+                index.put(updated);
+            }
+            publish(next);
+            return Optional.of(updated);
+        }
+    }
+
+    /** Removes the record stored under {@code key}; empty if there was none. */
+    public Optional<V> remove(String key) {
+        List<V> removed = removeAll(Collections.singletonList(key));
+        return removed.isEmpty() ? Optional.empty() : Optional.of(removed.get(0));
+    }
+
+    /** Removes a batch in one version; keys with no record are skipped. Returns the records removed. */
+    public List<V> removeAll(Collection<String> keys) {
+        synchronized (writeLock) {
+            List<V> removed = new ArrayList<>();
+            int first = Integer.MAX_VALUE;
+            for (String key : keys) {
+                V old = latest.remove(key);
+                if (old == null) continue;
+                removed.add(old);
+                first = Math.min(first, positions.remove(key));
+                for (Index<V> index : indexes) index.remove(old);
+            }
+            if (removed.isEmpty()) return removed;
+            // Keep the order of the rest; only the slots after the first removed one move
+            Object[] prev = current.values;
+            Object[] next = Arrays.copyOf(prev, prev.length - removed.size());
+            int j = first;
+            for (int i = first; i < prev.length; i++) {
+                @SuppressWarnings("unchecked")
+                String key = keyOf.apply((V) prev[i]);
+                if (positions.containsKey(key)) {
+                    next[j] = prev[i];
+                    positions.put(key, j++);
+                }
+            }
+            publish(next);
+            return removed;
+        }
+    }
+
+    private void publish(Object[] values) {
+        current = new Snapshot<>(current.version + 1, values);
+    }
+
+    /**
+     * Keys of the records grouped by one attribute. Lookups never block, but a record may change
+     * between reading its key here and fetching it, so callers re-check the attribute.
+     */
+    public static final class Index<V> {
+        private final Function<V, String> attribute;
+        private final Function<V, String> keyOf;
+        private final Map<String, Set<String>> keysByValue = new ConcurrentHashMap<>();
+        // Records whose attribute is null; kept apart since the map takes no null keys
+        private final Set<String> keysWithoutValue = ConcurrentHashMap.newKeySet();
+
+        private Index(Function<V, String> attribute, Function<V, String> keyOf) {
+            this.attribute = attribute;
+            this.keyOf = keyOf;
+        }
+
+        /** Keys of the records whose attribute equals {@code value} (null for none). */
+        public List<String> keys(String value) {
+            Set<String> keys = value == null ? keysWithoutValue : keysByValue.get(value);
+            return keys == null ? Collections.emptyList() : new ArrayList<>(keys);
+        }
+
+        /** How many records have this attribute value; cheap, for query planning. */
+        public int count(String value) {
+            Set<String> keys = value == null ? keysWithoutValue : keysByValue.get(value);
+            return keys == null ? 0 : keys.size();
+        }
+
+        private void put(V v) {
+            String value = attribute.apply(v);
+            Set<String> keys = value == null ? keysWithoutValue : keysByValue.computeIfAbsent(value, x -> ConcurrentHashMap.newKeySet());
+            keys.add(keyOf.apply(v));
+        }
+
+        // Only called under the store's write lock, so an emptied set can't be refilled meanwhile
+        private void remove(V v) {
+            String value = attribute.apply(v);
+            if (value == null) {
+                keysWithoutValue.remove(keyOf.apply(v));
+                return;
+            }
+            Set<String> keys = keysByValue.get(value);
+            if (keys != null && keys.remove(keyOf.apply(v)) && keys.isEmpty()) keysByValue.remove(value);
+        }
+    }
+
+    /** Immutable view of the store at one version. */
+    public static final class Snapshot<V> {
+        private final long version;
+        private final Object[] values;
+
+        private Snapshot(long version, Object[] values) {
+            this.version = version;
+            this.values = values;
+        }
+
+        public long getVersion() { return version; }
+        public int size() { return values.length; }
+
+        @SuppressWarnings("unchecked")
+        public List<V> values() {
+            return (List<V>) Collections.unmodifiableList(Arrays.asList(values));
+        }
+    }
+}
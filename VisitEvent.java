@@ -0,0 +1,49 @@
+import java.io.Serializable;
+import java.time.Instant;
+
+/**
+ * One immutable entry in a patient's visit history. Events only reference doctors and
+ * patients by ID so they stay valid however those records change later.
+ */
+public final class VisitEvent implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public enum Type { ADMISSION, DOCTOR_ASSIGNED, BILL_ITEM, REPORT, DISCHARGE }
+
+    private final long timestamp;
+    private final Type type;
+    private final String patientId;
+    private final String department;
+    private final String doctorId;
+    private final double amount;
+    private final String note;
+
+    public VisitEvent(long timestamp, Type type, String patientId, String department, String doctorId, double amount, String note) {
+        this.timestamp = timestamp;
+        this.type = type;
+        this.patientId = patientId;
+        this.department = department;
+        this.doctorId = doctorId;
+        this.amount = amount;
+        this.note = note;
+    }
+
+    public long getTimestamp() { return timestamp; }
+    public Type getType() { return type; }
+    public String getPatientId() { return patientId; }
+    public String getDepartment() { return department; }
+    public String getDoctorId() { return doctorId; }
+    public double getAmount() { return amount; }
+    public String getNote() { return note; }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(Instant.ofEpochMilli(timestamp)).append("  ").append(type).append("  patient ").append(patientId);
+        if (department != null) sb.append("  [").append(department).append("]");
+        if (doctorId != null) sb.append("  doctor ").append(doctorId);
+        if (type == Type.BILL_ITEM) sb.append(String.format("  %.2f", amount));
+        if (note != null && !note.isEmpty()) sb.append("  ").append(note);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,265 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Event-sourced visit history for all patients.
+ *
+ * Events are kept in time order and split into fixed-size segments; a segment is never
+ * touched again once full, which is also how it is written to disk (one block per segment).
+ * Range queries binary-search the segments and then the events inside them. Secondary
+ * indexes per (type, department) and per patient are time-ordered lists too, so a query
+ * like "assignments to cardiology in March" only visits the matching events.
+ */
+public class VisitHistory {
+    public static final int SEGMENT_SIZE = 1024;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final List<List<VisitEvent>> segments = new ArrayList<>();
+    private final Map<String, List<VisitEvent>> byTypeAndDepartment = new HashMap<>();
+    private final Map<String, List<VisitEvent>> byPatient = new HashMap<>();
+    private long lastTimestamp = Long.MIN_VALUE;
+    private int count;
+
+    /** Records a new event stamped with the current time (never earlier than the previous event). */
+    public VisitEvent record(VisitEvent.Type type, String patientId, String department, String doctorId, double amount, String note) {
+        lock.writeLock().lock();
+        try {
+            long ts = Math.max(System.currentTimeMillis(), lastTimestamp);
+            VisitEvent e = new VisitEvent(ts, type, patientId, department, doctorId, amount, note);
+            appendInOrder(e);
+            return e;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds previously recorded events, e.g. when loading saved segments. Events older than the
+     * newest one held force a full rebuild, so pass everything loaded in one call.
+     */
+    public void appendAll(Collection<VisitEvent> events) {
+        lock.writeLock().lock();
+        try {
+            List<VisitEvent> late = new ArrayList<>();
+            for (VisitEvent e : events) {
+                if (e.getTimestamp() >= lastTimestamp) {
+                    appendInOrder(e);
+                } else {
+                    late.add(e);
+                }
+            }
+            if (!late.isEmpty()) rebuildWith(late);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Drops every event of the given patients, e.g. after they moved to another shard. This
+     * rewrites all segments, so callers remove patients in batches.
+     */
+    public void removePatients(Set<String> patientIds) {
+        lock.writeLock().lock();
+        try {
+            List<VisitEvent> kept = new ArrayList<>(count);
+            for (List<VisitEvent> seg : segments) {
+                for (VisitEvent e : seg) {
+                    if (!patientIds.contains(e.getPatientId())) kept.add(e);
+                }
+            }
+            if (kept.size() < count) reindex(kept);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** All events with {@code from <= timestamp < to}. */
+    public List<VisitEvent> between(long from, long to) {
+        lock.readLock().lock();
+        try {
+            List<VisitEvent> result = new ArrayList<>();
+            for (int s = firstSegmentEndingAtOrAfter(from); s < segments.size(); s++) {
+                List<VisitEvent> seg = segments.get(s);
+                if (seg.get(0).getTimestamp() >= to) break;
+                result.addAll(seg.subList(lowerBound(seg, from), lowerBound(seg, to)));
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Events of {@code type} in {@code department} (any department if null) with {@code from <= timestamp < to}. */
+    public List<VisitEvent> query(VisitEvent.Type type, String department, long from, long to) {
+        if (department == null) {
+            List<VisitEvent> result = new ArrayList<>();
+            for (VisitEvent e : between(from, to)) {
+                if (e.getType() == type) result.add(e);
+            }
+            return result;
+        }
+        lock.readLock().lock();
+        try {
+            List<VisitEvent> index = byTypeAndDepartment.get(key(type, department));
+            if (index == null) return Collections.emptyList();
+            return new ArrayList<>(index.subList(lowerBound(index, from), lowerBound(index, to)));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public List<VisitEvent> forPatient(String patientId) {
+        lock.readLock().lock();
+        try {
+            List<VisitEvent> events = byPatient.get(patientId);
+            return events == null ? Collections.emptyList() : new ArrayList<>(events);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Rebuilds a patient's current state purely from their events. */
+    public PatientState replay(String patientId) {
+        PatientState state = new PatientState(patientId);
+        for (VisitEvent e : forPatient(patientId)) state.apply(e);
+        return state;
+    }
+
+    /** Copies of the segments in time order, for persisting. */
+    public List<List<VisitEvent>> segments() {
+        lock.readLock().lock();
+        try {
+            List<List<VisitEvent>> copy = new ArrayList<>(segments.size());
+            for (List<VisitEvent> seg : segments) copy.add(new ArrayList<>(seg));
+            return copy;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void appendInOrder(VisitEvent e) {
+        List<VisitEvent> tail = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (tail == null || tail.size() >= SEGMENT_SIZE) {
+            tail = new ArrayList<>(SEGMENT_SIZE);
+            segments.add(tail);
+        }
+        tail.add(e);
+        if (e.getDepartment() != null) {
+            byTypeAndDepartment.computeIfAbsent(key(e.getType(), e.getDepartment()), k -> new ArrayList<>()).add(e);
+        }
+        byPatient.computeIfAbsent(e.getPatientId(), k -> new ArrayList<>()).add(e);
+        lastTimestamp = e.getTimestamp();
+        count++;
+    }
+
+    // Slow path for events older than the tail (only when loading races with new activity)
+    private void rebuildWith(List<VisitEvent> late) {
+        List<VisitEvent> all = new ArrayList<>(count + late.size());
+        for (List<VisitEvent> seg : segments) all.addAll(seg);
+        all.addAll(late);
+        all.sort(Comparator.comparingLong(VisitEvent::getTimestamp));
+        reindex(all);
+    }
+
+    // Replaces everything held with the given time-ordered events
+    private void reindex(List<VisitEvent> all) {
+        segments.clear();
+        byTypeAndDepartment.clear();
+        byPatient.clear();
+        lastTimestamp = Long.MIN_VALUE;
+        count = 0;
+        for (VisitEvent e : all) appendInOrder(e);
+    }
+
+    private int firstSegmentEndingAtOrAfter(long ts) {
+        int lo = 0, hi = segments.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            List<VisitEvent> seg = segments.get(mid);
+            if (seg.get(seg.size() - 1).getTimestamp() < ts) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+
+    // First index whose timestamp is >= ts
+    private static int lowerBound(List<VisitEvent> events, long ts) {
+        int lo = 0, hi = events.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (events.get(mid).getTimestamp() < ts) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+
+    private static String key(VisitEvent.Type type, String department) {
+        return type + "|" + department.toLowerCase(Locale.ROOT);
+    }
+
+    /** A patient's state as derived from their events. */
+    public static final class PatientState {
+        private final String patientId;
+        private String department;
+        private String assignedDoctorId;
+        private double totalBilled;
+        private int billItems;
+        private int reports;
+        private String lastReport;
+        private boolean admitted;
+
+        PatientState(String patientId) {
+            this.patientId = patientId;
+        }
+
+        void apply(VisitEvent e) {
+            switch (e.getType()) {
+                case ADMISSION:
+                    admitted = true;
+                    department = e.getDepartment();
+                    break;
+                case DOCTOR_ASSIGNED:
+                    assignedDoctorId = e.getDoctorId();
+                    break;
+                case BILL_ITEM:
+                    totalBilled += e.getAmount();
+                    billItems++;
+                    break;
+                case REPORT:
+                    reports++;
+                    lastReport = e.getNote();
+                    break;
+                case DISCHARGE:
+                    admitted = false;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        public String getPatientId() { return patientId; }
+        public String getDepartment() { return department; }
+        public String getAssignedDoctorId() { return assignedDoctorId; }
+        public double getTotalBilled() { return totalBilled; }
+        public int getBillItems() { return billItems; }
+        public int getReports() { return reports; }
+        public String getLastReport() { return lastReport; }
+        public boolean isAdmitted() { return admitted; }
+    }
+}